@@ -0,0 +1,100 @@
+package org.oep.markov;
+
+/**
+ * Vose's alias method for sampling from a fixed discrete distribution.
+ * Building the table is linear in the number of outcomes, after which
+ * every draw costs one random integer and one random double.
+ * @author OEP
+ *
+ */
+public class AliasTable {
+	/** Probability of keeping the column we land in rather than taking its alias */
+	private final double mProbability[];
+
+	/** The outcome each column falls through to */
+	private final int mAlias[];
+
+	/**
+	 * Build an alias table out of the first n weights.
+	 * @param weights non-negative weights, at least one of which is positive
+	 * @param n how many weights to use
+	 */
+	public AliasTable(int weights[], int n) {
+		if(n <= 0) throw new IllegalArgumentException("Can't build an alias table with no outcomes");
+
+		mProbability = new double[n];
+		mAlias = new int[n];
+		build(weights, 0, n, mProbability, mAlias);
+	}
+
+	/**
+	 * Build an alias table into flat arrays shared by many tables, such as
+	 * one table per node laid end to end. Aliases are relative to offset.
+	 * @param weights non-negative weights, at least one of which is positive
+	 * @param offset where this table's weights start, and where its columns go
+	 * @param n how many weights to use
+	 * @param probability receives the keep probability of each column
+	 * @param alias receives the alias of each column
+	 */
+	public static void build(int weights[], int offset, int n, double probability[], int alias[]) {
+		long total = 0;
+		for(int i = 0; i < n; i++) total += weights[offset + i];
+
+		if(total <= 0) throw new IllegalArgumentException("Can't build an alias table with no weight");
+
+		// Scale everything so the average column holds exactly 1.0
+		double scaled[] = new double[n];
+		int small[] = new int[n];
+		int large[] = new int[n];
+		int smallCount = 0, largeCount = 0;
+
+		for(int i = 0; i < n; i++) {
+			scaled[i] = (double) weights[offset + i] * n / total;
+			if(scaled[i] < 1.0) small[smallCount++] = i;
+			else large[largeCount++] = i;
+		}
+
+		// Pair each under-full column with an over-full one.
+		while(smallCount > 0 && largeCount > 0) {
+			int s = small[--smallCount];
+			int l = large[--largeCount];
+
+			probability[offset + s] = scaled[s];
+			alias[offset + s] = l;
+
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if(scaled[l] < 1.0) small[smallCount++] = l;
+			else large[largeCount++] = l;
+		}
+
+		// Whatever is left over is full up to rounding error.
+		while(largeCount > 0) probability[offset + large[--largeCount]] = 1.0;
+		while(smallCount > 0) probability[offset + small[--smallCount]] = 1.0;
+	}
+
+	/**
+	 * Draw an outcome from a table laid out by build().
+	 * @return index of the chosen weight, relative to offset
+	 */
+	public static int sample(double probability[], int alias[], int offset, int n, RandomSource rng) {
+		int column = rng.nextInt(n);
+		return (rng.nextDouble() < probability[offset + column]) ? column : alias[offset + column];
+	}
+
+	/**
+	 * Draw an outcome.
+	 * @param rng source of randomness
+	 * @return index of the chosen weight
+	 */
+	public int sample(RandomSource rng) {
+		return sample(mProbability, mAlias, 0, mProbability.length, rng);
+	}
+
+	/**
+	 * Get the number of outcomes in this table.
+	 * @return number of outcomes
+	 */
+	public int size() {
+		return mProbability.length;
+	}
+}
@@ -0,0 +1,358 @@
+package org.oep.markov;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Saves chains in a compact binary format and loads them back.
+ * <p>
+ * A file is a header (magic number, format version and tuple length),
+ * a dictionary of every token the chain uses, each node's tuple as token
+ * indexes into that dictionary, and each node's edges sorted by target
+ * with the targets delta coded. Every count, index and weight is a
+ * varint. The file ends with a CRC32 of everything before it, which is
+ * checked before a load touches the chain.
+ * @author OEP
+ *
+ */
+public class ChainFile {
+	/** "MKCH" */
+	public static final int MAGIC = 0x4D4B4348;
+
+	/** The format version this class writes */
+	public static final int VERSION = 1;
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Save a chain. The file is written beside its destination and moved
+	 * into place once complete, so an existing save is never left half
+	 * overwritten.
+	 * @param chain the chain to save
+	 * @param codec how to write its data
+	 * @param file where to save it
+	 * @throws IOException
+	 */
+	public static <T> void save(MarkovChain<T> chain, TokenCodec<T> codec, File file) throws IOException {
+		Path target = file.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		FileChannel channel = FileChannel.open(temp,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			write(chain, codec, new Output(channel));
+			channel.force(false);
+		}
+		finally {
+			channel.close();
+		}
+
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Load a saved chain into the given one, adding to whatever it already
+	 * knows. The chain's tuple length must match the file's.
+	 * @param file the saved chain
+	 * @param codec how to read its data
+	 * @param chain the chain to load into
+	 * @throws IOException if the file can't be read, is corrupt or doesn't match the chain
+	 */
+	public static <T> void load(File file, TokenCodec<T> codec, MarkovChain<T> chain) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			verify(channel);
+			channel.position(0);
+			read(new Input(channel), codec, chain);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	private static <T> void write(MarkovChain<T> chain, TokenCodec<T> codec, Output out) throws IOException {
+		// A windowed chain saves only what it still remembers, as one epoch.
+		chain.expire();
+		ArrayList<MarkovChain<T>.Node> nodes = chain.mNodeTable;
+
+		// Number the tokens this chain actually uses; the dictionary may be shared.
+		int tokens[] = new int[chain.mDictionary.size()];
+		Arrays.fill(tokens, -1);
+		int used[] = new int[16];
+		int count = 0;
+		for(int i = 2; i < nodes.size(); i++) {
+			MarkovChain<T>.Tuple data = nodes.get(i).data;
+			for(int j = 0; j < data.mSize; j++) {
+				int id = data.mIds[j];
+				if(tokens[id] >= 0) continue;
+				if(count == used.length) used = Arrays.copyOf(used, count * 2);
+				tokens[id] = count;
+				used[count++] = id;
+			}
+		}
+
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putVarint(chain.mTupleLength);
+
+		out.putVarint(count);
+		for(int i = 0; i < count; i++) {
+			byte bytes[] = codec.encode(chain.mDictionary.get(used[i]));
+			out.putVarint(bytes.length);
+			out.putBytes(bytes);
+		}
+
+		// The header and trailer are always nodes 0 and 1 and hold no data.
+		out.putVarint(nodes.size());
+		for(int i = 2; i < nodes.size(); i++) {
+			MarkovChain<T>.Tuple data = nodes.get(i).data;
+			out.putVarint(data.mSize);
+			for(int j = 0; j < data.mSize; j++) out.putVarint(tokens[data.mIds[j]]);
+		}
+
+		long edges[] = new long[16];
+		for(int i = 0; i < nodes.size(); i++) {
+			ArrayList<MarkovChain<T>.Node.Edge> list = nodes.get(i).mEdges;
+			int sz = list.size();
+
+			// Sorted by target, so each target is a small step from the last.
+			if(sz > edges.length) edges = new long[Math.max(sz, edges.length * 2)];
+			for(int j = 0; j < sz; j++) {
+				MarkovChain<T>.Node.Edge e = list.get(j);
+				edges[j] = ((long) e.node.id << 32) | e.weight;
+			}
+			Arrays.sort(edges, 0, sz);
+
+			out.putVarint(sz);
+			int previous = 0;
+			for(int j = 0; j < sz; j++) {
+				int target = (int) (edges[j] >>> 32);
+				out.putVarint(target - previous);
+				out.putVarint((int) edges[j]);
+				previous = target;
+			}
+		}
+
+		out.finish();
+	}
+
+	private static <T> void read(Input in, TokenCodec<T> codec, MarkovChain<T> chain) throws IOException {
+		if(in.getInt() != MAGIC) throw new IOException("Not a chain file");
+
+		int version = in.getInt();
+		if(version < 1 || version > VERSION) {
+			throw new IOException(String.format("Unsupported chain file version %d", version));
+		}
+
+		int order = in.getVarint();
+		if(order != chain.mTupleLength) {
+			throw new IOException(
+					String.format("Chain file has tuple length %d. This structure: %d", order, chain.mTupleLength)
+					);
+		}
+
+		int count = in.getVarint();
+		int tokens[] = new int[count];
+		for(int i = 0; i < count; i++) {
+			tokens[i] = chain.mDictionary.intern(in.getToken(codec));
+		}
+
+		int nodeCount = in.getVarint();
+		if(nodeCount < 2) throw new IOException(String.format("Bad node count %d", nodeCount));
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		MarkovChain<T>.Node map[] = new MarkovChain.Node[nodeCount];
+		map[0] = chain.mHeader;
+		map[1] = chain.mTrailer;
+
+		int ids[] = new int[order];
+		for(int i = 2; i < nodeCount; i++) {
+			int size = in.getVarint();
+			if(size < 1 || size > order) throw new IOException(String.format("Bad tuple length %d", size));
+
+			for(int j = 0; j < size; j++) {
+				int token = in.getVarint();
+				if(token >= count) throw new IOException(String.format("Bad token index %d", token));
+				ids[j] = tokens[token];
+			}
+			map[i] = chain.findOrCreate(ids, size);
+		}
+
+		for(int i = 0; i < nodeCount; i++) {
+			int sz = in.getVarint();
+			int target = 0;
+			for(int j = 0; j < sz; j++) {
+				target += in.getVarint();
+				int weight = in.getVarint();
+				if(target >= nodeCount || weight <= 0) {
+					throw new IOException(String.format("Bad edge to %d with weight %d", target, weight));
+				}
+				map[i].promote(map[target], weight);
+			}
+		}
+
+		chain.settle();
+	}
+
+	/**
+	 * Check the checksum at the end of a file against the rest of it.
+	 */
+	private static void verify(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if(size < 4) throw new IOException("Chain file is truncated");
+
+		CRC32 crc = new CRC32();
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		long left = size - 4;
+		while(left > 0) {
+			buf.clear();
+			if(left < buf.capacity()) buf.limit((int) left);
+			int n = channel.read(buf);
+			if(n < 0) throw new EOFException("Chain file is truncated");
+			crc.update(buf.array(), 0, n);
+			left -= n;
+		}
+
+		buf.clear();
+		buf.limit(4);
+		while(buf.hasRemaining()) {
+			if(channel.read(buf) < 0) throw new EOFException("Chain file is truncated");
+		}
+		buf.flip();
+
+		if(buf.getInt() != (int) crc.getValue()) throw new IOException("Chain file checksum mismatch");
+	}
+
+	/**
+	 * Buffers writes to a channel and keeps a running checksum of them.
+	 */
+	static class Output {
+		private final FileChannel mChannel;
+		private final ByteBuffer mBuf = ByteBuffer.allocate(BUFFER_SIZE);
+		private final CRC32 mCrc = new CRC32();
+
+		Output(FileChannel channel) {
+			mChannel = channel;
+		}
+
+		void putInt(int v) throws IOException {
+			ensure(4);
+			mBuf.putInt(v);
+		}
+
+		void putVarint(int v) throws IOException {
+			ensure(5);
+			while((v & ~0x7F) != 0) {
+				mBuf.put((byte) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			mBuf.put((byte) v);
+		}
+
+		void putBytes(byte bytes[]) throws IOException {
+			int offset = 0;
+			while(offset < bytes.length) {
+				if(!mBuf.hasRemaining()) flush();
+				int n = Math.min(mBuf.remaining(), bytes.length - offset);
+				mBuf.put(bytes, offset, n);
+				offset += n;
+			}
+		}
+
+		/**
+		 * Write out what's left, followed by the checksum.
+		 */
+		void finish() throws IOException {
+			flush();
+			mBuf.putInt((int) mCrc.getValue());
+			drain();
+		}
+
+		private void ensure(int n) throws IOException {
+			if(mBuf.remaining() < n) flush();
+		}
+
+		private void flush() throws IOException {
+			mCrc.update(mBuf.array(), 0, mBuf.position());
+			drain();
+		}
+
+		private void drain() throws IOException {
+			mBuf.flip();
+			while(mBuf.hasRemaining()) mChannel.write(mBuf);
+			mBuf.clear();
+		}
+	}
+
+	/**
+	 * Buffers reads from a channel.
+	 */
+	private static class Input {
+		private final FileChannel mChannel;
+		private ByteBuffer mBuf = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Input(FileChannel channel) {
+			mChannel = channel;
+			mBuf.limit(0);
+		}
+
+		int getInt() throws IOException {
+			require(4);
+			return mBuf.getInt();
+		}
+
+		int getVarint() throws IOException {
+			int v = 0;
+			for(int shift = 0; shift < 35; shift += 7) {
+				if(!mBuf.hasRemaining()) require(1);
+				byte b = mBuf.get();
+				v |= (b & 0x7F) << shift;
+				if(b >= 0) {
+					if(v < 0) break;
+					return v;
+				}
+			}
+			throw new IOException("Bad varint");
+		}
+
+		<T> T getToken(TokenCodec<T> codec) throws IOException {
+			int length = getVarint();
+			require(length);
+
+			int start = mBuf.position();
+			T token = codec.decode(mBuf, length);
+			mBuf.position(start + length);
+			return token;
+		}
+
+		/**
+		 * Make sure at least n unread bytes are buffered.
+		 */
+		private void require(int n) throws IOException {
+			if(mBuf.remaining() >= n) return;
+
+			mBuf.compact();
+			if(n > mBuf.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(n);
+				mBuf.flip();
+				bigger.put(mBuf);
+				mBuf = bigger;
+			}
+
+			while(mBuf.position() < n) {
+				if(mChannel.read(mBuf) < 0) throw new EOFException("Chain file is truncated");
+			}
+			mBuf.flip();
+		}
+	}
+}
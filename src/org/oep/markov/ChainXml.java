@@ -0,0 +1,455 @@
+package org.oep.markov;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the XML written by MarkovChain.exportXML() and
+ * MarkovSentence.export() back into a chain, in one pass and without
+ * building a document.
+ * <p>
+ * Neither format records edge weights, so every edge comes back with a
+ * weight of one. exportXML() refers to nodes by ID, which is resolved
+ * through a table of nodes by ID; edges to nodes we haven't reached yet
+ * are parked as pairs of ints until the end. export() refers to nodes by
+ * their tuple, so its edges are added as they are read.
+ * <p>
+ * Dumps that start with an XML declaration, as the exporters now write,
+ * are parsed as XML. Older exporters wrote data as it was, so their dumps
+ * aren't well-formed whenever the data holds a quote, an ampersand or an
+ * angle bracket. Anything without a declaration is read line by line the
+ * way those exporters laid it out, taking names as written except for
+ * the five predefined entities, which a dump escaped without a
+ * declaration would hold.
+ * @author OEP
+ *
+ */
+public class ChainXml {
+	/**
+	 * Load an XML dump of strings into a chain.
+	 * @param file the dump
+	 * @param chain the chain to add its edges to
+	 * @throws IOException if the file can't be read or isn't a dump
+	 */
+	public static void load(File file, MarkovChain<String> chain) throws IOException {
+		load(file, chain, Function.identity());
+	}
+
+	/**
+	 * Load an XML dump into a chain, adding to whatever it already knows.
+	 * @param file the dump
+	 * @param chain the chain to add its edges to
+	 * @param parser turns each piece of exported data back into data
+	 * @throws IOException if the file can't be read or isn't a dump
+	 */
+	public static <T> void load(File file, MarkovChain<T> chain, Function<String, T> parser) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			load(in, chain, parser);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load an XML dump into a chain, adding to whatever it already knows.
+	 * @param in the dump
+	 * @param chain the chain to add its edges to
+	 * @param parser turns each piece of exported data back into data
+	 * @throws IOException if the stream can't be read or isn't a dump
+	 */
+	public static <T> void load(InputStream in, MarkovChain<T> chain, Function<String, T> parser) throws IOException {
+		if(!in.markSupported()) in = new BufferedInputStream(in);
+		if(!declared(in)) {
+			readLegacy(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), chain, parser);
+			return;
+		}
+
+		try {
+			// Dumps never need a DTD, and one could read files or URLs into the chain.
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			XMLStreamReader xml = factory.createXMLStreamReader(in);
+			try {
+				while(xml.next() != XMLStreamConstants.START_ELEMENT) { }
+
+				if(xml.getLocalName().equals("chain")) readChain(xml, chain, parser);
+				else if(xml.getLocalName().equals("markov")) readSentence(xml, chain, parser);
+				else throw new IOException(String.format("Unknown root element <%s>", xml.getLocalName()));
+			}
+			finally {
+				xml.close();
+			}
+		}
+		catch(XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Escape text for an XML element or a quoted attribute.
+	 * @param s the text
+	 * @return the escaped text
+	 */
+	public static String escape(String s) {
+		StringBuilder sb = null;
+		for(int i = 0; i < s.length(); i++) {
+			String entity;
+			switch(s.charAt(i)) {
+			case '<': entity = "&lt;"; break;
+			case '>': entity = "&gt;"; break;
+			case '&': entity = "&amp;"; break;
+			case '\'': entity = "&apos;"; break;
+			case '"': entity = "&quot;"; break;
+			default: entity = null;
+			}
+
+			if(entity == null) {
+				if(sb != null) sb.append(s.charAt(i));
+				continue;
+			}
+
+			if(sb == null) sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+			sb.append(entity);
+		}
+		return (sb == null) ? s : sb.toString();
+	}
+
+	/**
+	 * Undo escape(). Ampersands that don't start one of the five entities
+	 * it writes are left as they are.
+	 * @param s the escaped text
+	 * @return the text
+	 */
+	public static String unescape(String s) {
+		int amp = s.indexOf('&');
+		if(amp < 0) return s;
+
+		StringBuilder sb = new StringBuilder(s.length()).append(s, 0, amp);
+		for(int i = amp; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '&') {
+				int entity = entity(s, i);
+				if(entity >= 0) {
+					sb.append(ENTITY_CHARS.charAt(entity));
+					i += ENTITIES[entity].length() - 1;
+					continue;
+				}
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static final String ENTITIES[] = { "&lt;", "&gt;", "&amp;", "&apos;", "&quot;" };
+	private static final String ENTITY_CHARS = "<>&'\"";
+
+	private static int entity(String s, int at) {
+		for(int i = 0; i < ENTITIES.length; i++) {
+			if(s.startsWith(ENTITIES[i], at)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether a dump starts with an XML declaration, leaving the
+	 * stream where it was.
+	 */
+	private static boolean declared(InputStream in) throws IOException {
+		in.mark(64);
+		byte start[] = new byte[64];
+		int n = 0, read;
+		while(n < start.length && (read = in.read(start, n, start.length - n)) > 0) n += read;
+		in.reset();
+
+		String text = new String(start, 0, n, StandardCharsets.UTF_8);
+		int i = 0;
+		while(i < text.length() && (Character.isWhitespace(text.charAt(i)) || text.charAt(i) == '\uFEFF')) i++;
+		return text.startsWith("<?xml", i);
+	}
+
+	/**
+	 * Read the exportXML() format: header, node and trailer elements with
+	 * IDs, each holding its tuple as text followed by edges to other IDs.
+	 */
+	private static <T> void readChain(XMLStreamReader xml, MarkovChain<T> chain, Function<String, T> parser)
+	throws XMLStreamException, IOException {
+		NodeTable<T> table = new NodeTable<T>(chain, parser);
+
+		while(xml.hasNext()) {
+			switch(xml.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				String name = xml.getLocalName();
+				if(name.equals("edge")) table.edge(id(xml.getAttributeValue(null, "id")));
+				else if(isNode(name)) table.start(name, id(xml.getAttributeValue(null, "id")));
+				break;
+
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				table.text(xml.getText());
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				if(isNode(xml.getLocalName())) table.end();
+				break;
+			}
+		}
+		table.finish();
+	}
+
+	private static boolean isNode(String element) {
+		return element.equals("header") || element.equals("node") || element.equals("trailer");
+	}
+
+	/**
+	 * Read the MarkovSentence.export() format: a header and then node
+	 * elements named by their tuple, each holding edges named the same way.
+	 */
+	private static <T> void readSentence(XMLStreamReader xml, MarkovChain<T> chain, Function<String, T> parser)
+	throws XMLStreamException, IOException {
+		List<T> source = null;
+
+		while(xml.hasNext()) {
+			if(xml.next() != XMLStreamConstants.START_ELEMENT) continue;
+
+			String name = xml.getLocalName();
+			if(name.equals("header")) {
+				source = new ArrayList<T>();
+			}
+			else if(name.equals("node")) {
+				source = parse(xml.getAttributeValue(null, "name"), parser);
+				if(source.size() == 0) throw new IOException("Node without a name");
+			}
+			else if(name.equals("edge")) {
+				if(source == null) throw new IOException("Edge outside of a node");
+
+				// Trailer edges come out as either trailer='true' or an empty tuple.
+				List<T> target = "true".equals(xml.getAttributeValue(null, "trailer"))
+						? new ArrayList<T>() : parse(xml.getAttributeValue(null, "name"), parser);
+				chain.addTransition(source, target, 1);
+			}
+		}
+	}
+
+	/**
+	 * Read a dump as the old exporters laid it out, one tag or tuple to a
+	 * line, without taking it for XML.
+	 */
+	private static <T> void readLegacy(BufferedReader in, MarkovChain<T> chain, Function<String, T> parser)
+	throws IOException {
+		String line;
+		int number = 0;
+		String root = null;
+		while(root == null && (line = in.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if(line.length() > 0) root = line;
+		}
+
+		if("<chain>".equals(root)) readLegacyChain(in, number, chain, parser);
+		else if("<markov>".equals(root)) readLegacySentence(in, number, chain, parser);
+		else throw new IOException(String.format("Unknown root element %s", root));
+	}
+
+	private static <T> void readLegacyChain(BufferedReader in, int number, MarkovChain<T> chain,
+			Function<String, T> parser) throws IOException {
+		NodeTable<T> table = new NodeTable<T>(chain, parser);
+
+		String line;
+		while((line = in.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if(line.length() == 0 || line.equals("</chain>")) continue;
+
+			String id = between(line, "<edge id='", "' />");
+			if(id != null) {
+				table.edge(id(id));
+				continue;
+			}
+
+			// Tuples start with '[' and tags with '<', whatever the data holds.
+			if(line.startsWith("[")) {
+				table.text(unescape(line));
+				continue;
+			}
+
+			String element = null;
+			for(int i = 0; element == null && i < NODE_ELEMENTS.length; i++) {
+				id = between(line, "<" + NODE_ELEMENTS[i] + " id='", "'>");
+				if(id != null) element = NODE_ELEMENTS[i];
+			}
+			if(element != null) table.start(element, id(id));
+			else if(line.startsWith("</") && isNode(line.substring(2, line.length() - 1))) table.end();
+			else throw new IOException(String.format("Line %d: can't read '%s'", number, line));
+		}
+		table.finish();
+	}
+
+	private static final String NODE_ELEMENTS[] = { "header", "node", "trailer" };
+
+	private static <T> void readLegacySentence(BufferedReader in, int number, MarkovChain<T> chain,
+			Function<String, T> parser) throws IOException {
+		List<T> source = null;
+
+		String line;
+		while((line = in.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if(line.length() == 0 || line.equals("</header>") || line.equals("</node>") || line.equals("</markov>")) continue;
+
+			String name;
+			if(line.equals("<header>")) {
+				source = new ArrayList<T>();
+			}
+			else if((name = between(line, "<node name='", "'>")) != null) {
+				source = parse(unescape(name), parser);
+				if(source.size() == 0) throw new IOException(String.format("Line %d: node without a name", number));
+			}
+			else if(line.equals("<edge trailer='true' />") || (name = between(line, "<edge name='", "' />")) != null) {
+				if(source == null) throw new IOException(String.format("Line %d: edge outside of a node", number));
+				List<T> target = (name == null) ? new ArrayList<T>() : parse(unescape(name), parser);
+				chain.addTransition(source, target, 1);
+			}
+			else {
+				throw new IOException(String.format("Line %d: can't read '%s'", number, line));
+			}
+		}
+	}
+
+	/**
+	 * Get what a line holds between a prefix and a suffix.
+	 * @return the text between them, or null if the line doesn't have both
+	 */
+	private static String between(String line, String prefix, String suffix) {
+		if(line.length() < prefix.length() + suffix.length()) return null;
+		if(!line.startsWith(prefix) || !line.endsWith(suffix)) return null;
+		return line.substring(prefix.length(), line.length() - suffix.length());
+	}
+
+	/**
+	 * Resolves the exportXML() format's node IDs to our nodes, whichever
+	 * reader is parsing it. A node is resolved once its tuple has been
+	 * read, which is at its first edge or its end.
+	 */
+	private static class NodeTable<T> {
+		private final MarkovChain<T> mChain;
+		private final Function<String, T> mParser;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private MarkovChain<T>.Node mTable[] = new MarkovChain.Node[64];
+
+		/** Edges to nodes we haven't read yet, as source and target ID pairs. */
+		private int mPending[] = new int[64];
+		private int mPendingCount = 0;
+
+		/** The node being read, its element and its tuple so far */
+		private int mSource = -1;
+		private String mElement = null;
+		private final StringBuilder mText = new StringBuilder();
+
+		NodeTable(MarkovChain<T> chain, Function<String, T> parser) {
+			mChain = chain;
+			mParser = parser;
+		}
+
+		void start(String element, int id) throws IOException {
+			mSource = id;
+			mElement = element;
+			if(id >= mTable.length) mTable = Arrays.copyOf(mTable, Math.max(id + 1, mTable.length * 2));
+			if(mTable[id] != null) throw new IOException(String.format("Node %d appears twice", id));
+			mText.setLength(0);
+		}
+
+		void text(String text) {
+			if(mSource >= 0 && mTable[mSource] == null) mText.append(text);
+		}
+
+		void edge(int target) throws IOException {
+			if(mSource < 0) throw new IOException("Edge outside of a node");
+			if(mTable[mSource] == null) mTable[mSource] = resolve(mChain, mElement, mText, mParser);
+
+			if(target < mTable.length && mTable[target] != null) {
+				mTable[mSource].promote(mTable[target], 1);
+				return;
+			}
+			if(mPendingCount + 2 > mPending.length) mPending = Arrays.copyOf(mPending, mPending.length * 2);
+			mPending[mPendingCount++] = mSource;
+			mPending[mPendingCount++] = target;
+		}
+
+		void end() throws IOException {
+			if(mSource < 0) throw new IOException("End of a node that never started");
+
+			// Nodes without edges are only finished here.
+			if(mTable[mSource] == null) mTable[mSource] = resolve(mChain, mElement, mText, mParser);
+			mSource = -1;
+		}
+
+		void finish() throws IOException {
+			for(int i = 0; i < mPendingCount; i += 2) {
+				int target = mPending[i + 1];
+				if(target >= mTable.length || mTable[target] == null) {
+					throw new IOException(String.format("Edge to missing node %d", target));
+				}
+				mTable[mPending[i]].promote(mTable[target], 1);
+			}
+		}
+	}
+
+	private static <T> MarkovChain<T>.Node resolve(MarkovChain<T> chain, String element, CharSequence text,
+			Function<String, T> parser) throws IOException {
+		if(element.equals("header")) return chain.mHeader;
+		if(element.equals("trailer")) return chain.mTrailer;
+
+		List<T> tuple = parse(text.toString(), parser);
+		if(tuple.size() == 0) throw new IOException("Node without data");
+		return chain.resolve(tuple);
+	}
+
+	private static int id(String id) throws IOException {
+		try {
+			int n = Integer.parseInt(id);
+			if(n < 0) throw new NumberFormatException();
+			return n;
+		}
+		catch(NumberFormatException e) {
+			throw new IOException(String.format("Bad node ID '%s'", id));
+		}
+	}
+
+	/**
+	 * Parse a tuple written by Tuple.toString(), such as "[a, b]".
+	 */
+	private static <T> List<T> parse(String s, Function<String, T> parser) throws IOException {
+		if(s == null) throw new IOException("Missing tuple");
+
+		s = s.trim();
+		if(s.length() < 2 || s.charAt(0) != '[' || s.charAt(s.length() - 1) != ']') {
+			throw new IOException(String.format("Bad tuple '%s'", s));
+		}
+
+		ArrayList<T> tuple = new ArrayList<T>();
+		s = s.substring(1, s.length() - 1);
+		if(s.length() == 0) return tuple;
+
+		for(String data : s.split(", ", -1)) tuple.add(parser.apply(data));
+		return tuple;
+	}
+}
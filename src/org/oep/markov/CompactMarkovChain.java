@@ -0,0 +1,502 @@
+package org.oep.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A chain that keeps its graph in flat primitive arrays instead of one
+ * object per node and per edge. Every node owns a block of slots in a
+ * shared edge pool holding target node IDs and weights; when a block fills
+ * up it moves to the end of the pool with twice the room, and compact()
+ * squeezes the abandoned blocks back out. An edge costs eight bytes plus
+ * slack, against a few dozen for a MarkovChain.Node.Edge.
+ * <p>
+ * Hubs like the header get the same help as in MarkovChain: past
+ * EDGE_INDEX_THRESHOLD edges a node finds its edges through a hash index,
+ * and past FENWICK_THRESHOLD it samples through a Fenwick tree, so
+ * learning and generating stay cheap however many edges a node has.
+ * Edges never move within their block, so neither needs rebuilding when
+ * a block is relocated or compacted.
+ * <p>
+ * This is not a drop-in MarkovChain. It only learns whole phrases and
+ * generates whole phrases, through MarkovModel: there are no cursors, no
+ * next(), no windows, budgets or journals, and nothing is ever unlearned.
+ * Think of it as a cheap way to build a graph, to generate from directly
+ * or to freeze with snapshot(); its snapshots are the same MarkovSnapshot
+ * MarkovChain makes, and can be written out with MappedMarkovChain.
+ * @author OEP
+ *
+ * @param <T> the type of data you would like to generate phrases for
+ */
+public class CompactMarkovChain<T> implements MarkovModel<T> {
+	/** ID of the node that marks the beginning of a phrase */
+	public static final int HEADER = 0;
+
+	/** ID of the node that marks the end of a phrase */
+	public static final int TRAILER = 1;
+
+	/** Maps our data to the int IDs that nodes actually hold */
+	protected final TokenDictionary<T> mDictionary;
+
+	/** Resolves a packed tuple (see PackedTuple) to the ID of the node that holds it */
+	protected LongIntHashMap mPackedNodes = new LongIntHashMap();
+
+	/** Resolves tuples too wide to pack to the ID of the node that holds them */
+	protected HashMap<Key, Integer> mWideNodes = new HashMap<Key, Integer>();
+
+	/** Token IDs of each node's tuple, mTupleLength per node, padded with -1 */
+	protected int mNodeTokens[];
+
+	/** Scratch tuple used while walking a phrase */
+	private int mScratch[];
+
+	/** Reusable key for probing mWideNodes */
+	private Key mProbe = new Key(new int[0], 0);
+
+	/** Where each node's block starts in the edge pool */
+	protected int mEdgeStart[];
+
+	/** How many edges each node has */
+	protected int mEdgeSize[];
+
+	/** Sum of each node's edge weights */
+	protected int mEdgeTotal[];
+
+	/** Each node's index from target node ID to edge position in its block, or null below EDGE_INDEX_THRESHOLD edges */
+	protected IntIntHashMap mEdgeIndex[];
+
+	/** Running sums of each node's edge weights, or null below FENWICK_THRESHOLD edges */
+	protected FenwickTree mFenwick[];
+
+	/** Target node ID of each edge slot */
+	protected int mTargets[];
+
+	/** Weight of each edge slot */
+	protected int mWeights[];
+
+	/** First unused slot at the end of the edge pool */
+	protected int mEdgeTop = 0;
+
+	/** Slots in blocks that have since been moved */
+	protected int mWastedSlots = 0;
+
+	/** Number of nodes, including header and trailer */
+	protected int mNodeCount = 0;
+
+	/** Number of distinct edges */
+	protected int mEdgeCount = 0;
+
+	/** Stores how long our tuple length is (how many data elements a node has) */
+	protected final int mTupleLength;
+
+	/** Nodes use this to find the next node. Each thread gets its own split of the root. */
+	private RandomSource.PerThread mRandom = new RandomSource.PerThread(RandomSource.create());
+
+	public CompactMarkovChain(int n) {
+		this(n, new TokenDictionary<T>());
+	}
+
+	/**
+	 * Make a chain that resolves its data through a dictionary which may
+	 * be shared with other chains over the same vocabulary.
+	 * @param n tuple length
+	 * @param dictionary the dictionary to intern data with
+	 */
+	public CompactMarkovChain(int n, TokenDictionary<T> dictionary) {
+		if(n <= 0) throw new IllegalArgumentException("Can't have CompactMarkovChain with tuple length <= 0");
+		if(dictionary == null) throw new IllegalArgumentException("Can't have CompactMarkovChain without a dictionary");
+
+		mTupleLength = n;
+		mDictionary = dictionary;
+		mScratch = new int[n];
+		clear();
+	}
+
+	/**
+	 * Get the dictionary this chain interns its data with.
+	 * @return the dictionary
+	 */
+	public TokenDictionary<T> getDictionary() {
+		return mDictionary;
+	}
+
+	/**
+	 * Forget everything.
+	 */
+	public void clear() {
+		mPackedNodes.clear();
+		mWideNodes.clear();
+		mNodeTokens = new int[16 * mTupleLength];
+		mEdgeStart = new int[16];
+		mEdgeSize = new int[16];
+		mEdgeTotal = new int[16];
+		mEdgeIndex = new IntIntHashMap[16];
+		mFenwick = new FenwickTree[16];
+		mTargets = new int[64];
+		mWeights = new int[64];
+		mEdgeTop = 0;
+		mWastedSlots = 0;
+		mNodeCount = 0;
+		mEdgeCount = 0;
+
+		makeNode(mScratch, 0);
+		makeNode(mScratch, 0);
+	}
+
+	/**
+	 * Replace the root that every thread's source of randomness is split from.
+	 * @param random the new root
+	 */
+	public void setRandomSource(RandomSource random) {
+		mRandom = new RandomSource.PerThread(random);
+	}
+
+	/**
+	 * Seed the chain so that generation is reproducible.
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		setRandomSource(RandomSource.create(seed));
+	}
+
+	/**
+	 * Get the number of edges in this graph.
+	 * @return number of edges
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+
+	/**
+	 * Get the number of nodes in this graph, not counting header and trailer.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return mNodeCount - 2;
+	}
+
+	/**
+	 * Interpret a list of data as a possible phrase.
+	 * @param phrase to learn
+	 */
+	public void addPhrase(List<T> phrase) {
+		if(phrase == null || phrase.size() == 0) return;
+
+		int current = HEADER;
+		int sz = phrase.size();
+
+		// Walk the phrase one tuple at a time.
+		for(int i = 0; i < sz; i += mTupleLength) {
+			int end = Math.min(sz, i + mTupleLength);
+			for(int j = i; j < end; j++) mScratch[j - i] = mDictionary.intern(phrase.get(j));
+
+			int n = findOrCreate(mScratch, end - i);
+			promote(current, n);
+			current = n;
+		}
+
+		promote(current, TRAILER);
+	}
+
+	/**
+	 * Interpret an array of data as a valid phrase.
+	 * @param phrase to interpret
+	 */
+	public void addPhrase(T phrase[]) {
+		if(phrase == null) return;
+		addPhrase(Arrays.asList(phrase));
+	}
+
+	/**
+	 * Use our graph to randomly generate a possibly valid phrase.
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase() {
+		return makePhrase(mRandom.get());
+	}
+
+	/**
+	 * Generate a phrase drawing from the given source of randomness.
+	 * @param rng source of randomness
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase(RandomSource rng) {
+		ArrayList<T> phrase = new ArrayList<T>();
+		int current = next(HEADER, rng);
+
+		while(current >= 0 && current != TRAILER) {
+			int base = current * mTupleLength;
+			for(int i = base; i < base + mTupleLength && mNodeTokens[i] >= 0; i++) {
+				phrase.add(mDictionary.get(mNodeTokens[i]));
+			}
+			current = next(current, rng);
+		}
+
+		return phrase;
+	}
+
+	/**
+	 * Rewrite the edge pool so every node's block is contiguous and
+	 * nothing is left in abandoned blocks.
+	 */
+	public void compact() {
+		int needed = 0;
+		for(int n = 0; n < mNodeCount; n++) needed += capacity(mEdgeSize[n]);
+
+		int targets[] = new int[Math.max(64, needed)];
+		int weights[] = new int[targets.length];
+		int top = 0;
+
+		for(int n = 0; n < mNodeCount; n++) {
+			int sz = mEdgeSize[n];
+			System.arraycopy(mTargets, mEdgeStart[n], targets, top, sz);
+			System.arraycopy(mWeights, mEdgeStart[n], weights, top, sz);
+			mEdgeStart[n] = top;
+			top += capacity(sz);
+		}
+
+		mTargets = targets;
+		mWeights = weights;
+		mEdgeTop = top;
+		mWastedSlots = 0;
+	}
+
+	/**
+	 * Freeze the current graph into a compact, read-only snapshot that any
+	 * number of threads can generate from while this chain keeps learning.
+	 * @return snapshot of the graph as it is now
+	 */
+	public MarkovSnapshot<T> snapshot() {
+		int offsets[] = new int[mNodeCount + 1];
+		for(int n = 0; n < mNodeCount; n++) offsets[n + 1] = offsets[n] + mEdgeSize[n];
+
+		int targets[] = new int[offsets[mNodeCount]];
+		int weights[] = new int[targets.length];
+		for(int n = 0; n < mNodeCount; n++) {
+			System.arraycopy(mTargets, mEdgeStart[n], targets, offsets[n], mEdgeSize[n]);
+			System.arraycopy(mWeights, mEdgeStart[n], weights, offsets[n], mEdgeSize[n]);
+		}
+
+		int tokens[] = Arrays.copyOf(mNodeTokens, mNodeCount * mTupleLength);
+		return new MarkovSnapshot<T>(mDictionary, mTupleLength, tokens, offsets, targets, weights);
+	}
+
+	/**
+	 * Randomly choose the node after the given one.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if there are no edges
+	 */
+	protected int next(int node, RandomSource rng) {
+		int sz = mEdgeSize[node];
+		if(sz == 0) return -1;
+
+		int r = rng.nextInt(mEdgeTotal[node]);
+		int start = mEdgeStart[node];
+		if(mFenwick[node] != null) return mTargets[start + mFenwick[node].find(r)];
+
+		for(int i = start; i < start + sz; i++) {
+			r -= mWeights[i];
+			if(r < 0) return mTargets[i];
+		}
+
+		// In theory, this shouldn't happen, but we should want to know if it does.
+		throw new IllegalStateException("Something terrible happened.");
+	}
+
+	/**
+	 * Add weight to the edge between two nodes, creating it if needed.
+	 * @param from ID of the source node
+	 * @param to ID of the target node
+	 */
+	protected void promote(int from, int to) {
+		int start = mEdgeStart[from];
+		int sz = mEdgeSize[from];
+		mEdgeTotal[from]++;
+
+		int i = findEdge(from, to);
+		if(i >= 0) {
+			mWeights[start + i]++;
+			if(mFenwick[from] != null) mFenwick[from].add(i, 1);
+			return;
+		}
+
+		// The block is full when its size has reached its capacity.
+		if(sz == capacity(sz)) {
+			start = relocate(from, capacity(sz + 1));
+		}
+
+		mTargets[start + sz] = to;
+		mWeights[start + sz] = 1;
+		mEdgeSize[from] = sz + 1;
+		mEdgeCount++;
+
+		if(mEdgeIndex[from] != null) mEdgeIndex[from].put(to, sz);
+		else if(sz + 1 > MarkovChain.EDGE_INDEX_THRESHOLD) buildEdgeIndex(from);
+
+		// Hubs switch over to a Fenwick tree so sampling stays logarithmic.
+		if(mFenwick[from] != null) mFenwick[from].append(1);
+		else if(sz + 1 > MarkovChain.FENWICK_THRESHOLD) buildFenwick(from);
+	}
+
+	/**
+	 * Find where a node's edge to another node sits in its block.
+	 * @param from ID of the source node
+	 * @param to ID of the target node
+	 * @return position from the start of the block, or -1 if there is no such edge
+	 */
+	protected int findEdge(int from, int to) {
+		if(mEdgeIndex[from] != null) return mEdgeIndex[from].get(to);
+
+		int start = mEdgeStart[from];
+		int sz = mEdgeSize[from];
+		for(int i = 0; i < sz; i++) {
+			if(mTargets[start + i] == to) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Index a node's current edges by the ID of the node they point to.
+	 */
+	private void buildEdgeIndex(int node) {
+		int start = mEdgeStart[node];
+		int sz = mEdgeSize[node];
+		IntIntHashMap index = new IntIntHashMap(sz);
+		for(int i = 0; i < sz; i++) index.put(mTargets[start + i], i);
+		mEdgeIndex[node] = index;
+	}
+
+	/**
+	 * Build the Fenwick tree over a node's current edge weights.
+	 */
+	private void buildFenwick(int node) {
+		int start = mEdgeStart[node];
+		int sz = mEdgeSize[node];
+		mFenwick[node] = new FenwickTree(Arrays.copyOfRange(mWeights, start, start + sz), sz);
+	}
+
+	/**
+	 * Block capacity for a node with the given number of edges: exact for
+	 * zero or one edge, then the next power of two.
+	 */
+	private static int capacity(int size) {
+		return (size <= 1) ? size : Integer.highestOneBit(size - 1) << 1;
+	}
+
+	/**
+	 * Move a node's edges to a fresh block at the end of the pool.
+	 * @return where the new block starts
+	 */
+	private int relocate(int node, int capacity) {
+		if(mWastedSlots > mEdgeCount && mWastedSlots > 1024) compact();
+
+		if(mEdgeTop + capacity > mTargets.length) {
+			int grown = Math.max(mTargets.length * 2, mEdgeTop + capacity);
+			mTargets = Arrays.copyOf(mTargets, grown);
+			mWeights = Arrays.copyOf(mWeights, grown);
+		}
+
+		int start = mEdgeStart[node];
+		int sz = mEdgeSize[node];
+		System.arraycopy(mTargets, start, mTargets, mEdgeTop, sz);
+		System.arraycopy(mWeights, start, mWeights, mEdgeTop, sz);
+
+		mWastedSlots += capacity(sz);
+		mEdgeStart[node] = mEdgeTop;
+		mEdgeTop += capacity;
+		return mEdgeStart[node];
+	}
+
+	/**
+	 * Find the node holding the given tuple, or create one.
+	 * @param ids token IDs of the tuple
+	 * @param size how many of them are in use
+	 * @return ID of the node
+	 */
+	private int findOrCreate(int ids[], int size) {
+		long packed = PackedTuple.pack(ids, size, mTupleLength);
+		if(packed != -1) {
+			int id = mPackedNodes.get(packed);
+			if(id != LongIntHashMap.MISSING) return id;
+
+			int n = makeNode(ids, size);
+			mPackedNodes.put(packed, n);
+			return n;
+		}
+
+		// Probe with the reusable key before committing to a new one.
+		mProbe.reuse(ids, size);
+		Integer id = mWideNodes.get(mProbe);
+		if(id != null) return id;
+
+		int n = makeNode(ids, size);
+		mWideNodes.put(new Key(Arrays.copyOf(ids, size), size), n);
+		return n;
+	}
+
+	private int makeNode(int ids[], int size) {
+		if(mNodeCount == mEdgeStart.length) {
+			int grown = mNodeCount * 2;
+			mEdgeStart = Arrays.copyOf(mEdgeStart, grown);
+			mEdgeSize = Arrays.copyOf(mEdgeSize, grown);
+			mEdgeTotal = Arrays.copyOf(mEdgeTotal, grown);
+			mEdgeIndex = Arrays.copyOf(mEdgeIndex, grown);
+			mFenwick = Arrays.copyOf(mFenwick, grown);
+			mNodeTokens = Arrays.copyOf(mNodeTokens, grown * mTupleLength);
+		}
+
+		int base = mNodeCount * mTupleLength;
+		for(int i = 0; i < mTupleLength; i++) {
+			mNodeTokens[base + i] = (i < size) ? ids[i] : -1;
+		}
+
+		mEdgeStart[mNodeCount] = mEdgeTop;
+		mEdgeSize[mNodeCount] = 0;
+		mEdgeTotal[mNodeCount] = 0;
+		return mNodeCount++;
+	}
+
+	/**
+	 * Hash key for a tuple of token IDs too wide to pack.
+	 * Stored keys are never changed once they are in the map.
+	 */
+	protected static class Key {
+		private int mIds[];
+		private int mSize;
+		private int mHash;
+
+		public Key(int ids[], int size) {
+			reuse(ids, size);
+		}
+
+		/**
+		 * Point this key at other IDs. Only for probe keys that are never stored.
+		 */
+		void reuse(int ids[], int size) {
+			mIds = ids;
+			mSize = size;
+
+			int h = 1;
+			for(int i = 0; i < size; i++) h = 31 * h + ids[i];
+			mHash = h;
+		}
+
+		public int hashCode() {
+			return mHash;
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			if(other.mHash != mHash || other.mSize != mSize) return false;
+
+			for(int i = 0; i < mSize; i++) {
+				if(mIds[i] != other.mIds[i]) return false;
+			}
+			return true;
+		}
+	}
+}
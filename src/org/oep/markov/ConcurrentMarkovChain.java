@@ -0,0 +1,468 @@
+package org.oep.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A MarkovChain that any number of threads may learn and generate from at
+ * once. Nodes are resolved through a striped index and edges are published
+ * through copy-on-grow arrays, both of which are read without locking, and
+ * edge weights are bumped with compare-and-set. Only creating a node or an
+ * edge takes a lock, and then only on one stripe or one node.
+ * @author OEP
+ *
+ * @param <T> the type of data you would like to generate phrases for
+ */
+public class ConcurrentMarkovChain<T> implements MarkovModel<T> {
+	/** Number of independently locked slices of the packed node index */
+	private static final int STRIPES = 64;
+
+	/** Maps our data to the int IDs that nodes actually hold */
+	protected final TokenDictionary<T> mDictionary;
+
+	/** Stores how long our tuple length is (how many data elements a node has) */
+	protected final int mTupleLength;
+
+	/** Packed tuples (see PackedTuple), each stripe guarded by its own lock */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Stripe mStripes[] = new ConcurrentMarkovChain.Stripe[STRIPES];
+
+	/** Tuples too wide to pack */
+	private final ConcurrentHashMap<Key, Node> mWideNodes = new ConcurrentHashMap<Key, Node>();
+
+	/** Each generating thread gets its own split of the root, so drawing never contends */
+	private volatile RandomSource.PerThread mRandom = new RandomSource.PerThread(RandomSource.create());
+
+	private final AtomicInteger mNodeCount = new AtomicInteger();
+	private final AtomicInteger mEdgeCount = new AtomicInteger();
+
+	/** Node that marks the beginning of a phrase. All Markov phrases start here. */
+	protected final Node mHeader = new Node(new int[0], -1);
+
+	/** Node that signals the end of a phrase. This node should have no edges. */
+	protected final Node mTrailer = new Node(new int[0], -1);
+
+	public ConcurrentMarkovChain(int n) {
+		this(n, new TokenDictionary<T>());
+	}
+
+	/**
+	 * Make a chain that resolves its data through a dictionary which may
+	 * be shared with other chains over the same vocabulary.
+	 * @param n tuple length
+	 * @param dictionary the dictionary to intern data with
+	 */
+	public ConcurrentMarkovChain(int n, TokenDictionary<T> dictionary) {
+		if(n <= 0) throw new IllegalArgumentException("Can't have MarkovChain with tuple length <= 0");
+		if(dictionary == null) throw new IllegalArgumentException("Can't have MarkovChain without a dictionary");
+
+		mTupleLength = n;
+		mDictionary = dictionary;
+		for(int i = 0; i < STRIPES; i++) mStripes[i] = new Stripe();
+	}
+
+	/**
+	 * Get the dictionary this chain interns its data with.
+	 * @return the dictionary
+	 */
+	public TokenDictionary<T> getDictionary() {
+		return mDictionary;
+	}
+
+	/**
+	 * Replace the root that every thread's source of randomness is split from.
+	 * @param random the new root
+	 */
+	public void setRandomSource(RandomSource random) {
+		mRandom = new RandomSource.PerThread(random);
+	}
+
+	/**
+	 * Seed the chain so that generation is reproducible.
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		setRandomSource(RandomSource.create(seed));
+	}
+
+	/**
+	 * Get the number of edges in this graph.
+	 * @return number of edges
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount.get();
+	}
+
+	/**
+	 * Get the number of nodes in this graph, not counting header and trailer.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return mNodeCount.get();
+	}
+
+	/**
+	 * Interpret a list of data as a possible phrase. Safe to call from
+	 * any number of threads at once.
+	 * @param phrase to learn
+	 */
+	public void addPhrase(List<T> phrase) {
+		if(phrase == null || phrase.size() == 0) return;
+
+		int scratch[] = new int[mTupleLength];
+		int fill = 0;
+		Node current = mHeader;
+
+		for(T data : phrase) {
+			scratch[fill++] = mDictionary.intern(data);
+
+			if(fill == mTupleLength) {
+				Node n = findOrCreate(scratch, fill);
+				current.promote(n);
+				current = n;
+				fill = 0;
+			}
+		}
+
+		// Add any incomplete tuples if needed.
+		if(fill > 0) {
+			Node n = findOrCreate(scratch, fill);
+			current.promote(n);
+			current = n;
+		}
+
+		current.promote(mTrailer);
+	}
+
+	/**
+	 * Interpret an array of data as a valid phrase.
+	 * @param phrase to interpret
+	 */
+	public void addPhrase(T phrase[]) {
+		if(phrase == null) return;
+		addPhrase(Arrays.asList(phrase));
+	}
+
+	/**
+	 * Use our graph to randomly generate a possibly valid phrase. Never
+	 * blocks, even while other threads are learning.
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase() {
+		return makePhrase(mRandom.get());
+	}
+
+	/**
+	 * Generate a phrase drawing from the given source of randomness.
+	 * @param rng source of randomness, used only by the calling thread
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase(RandomSource rng) {
+		ArrayList<T> phrase = new ArrayList<T>();
+		Node current = mHeader.next(rng);
+
+		while(current != null && current != mTrailer) {
+			for(int id : current.mIds) phrase.add(mDictionary.get(id));
+			current = current.next(rng);
+		}
+
+		return phrase;
+	}
+
+	/**
+	 * Copy the graph into a read-only snapshot, numbering nodes as they
+	 * are found walking out from the header. Other threads may go on
+	 * learning meanwhile, in which case the snapshot has some of what they
+	 * learned and not the rest.
+	 * @return snapshot of the graph
+	 */
+	public MarkovSnapshot<T> snapshot() {
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		HashMap<Node, Integer> ids = new HashMap<Node, Integer>();
+		nodes.add(mHeader);
+		ids.put(mHeader, MarkovSnapshot.HEADER);
+		nodes.add(mTrailer);
+		ids.put(mTrailer, MarkovSnapshot.TRAILER);
+
+		int offsets[] = new int[16];
+		int targets[] = new int[16];
+		int weights[] = new int[16];
+		int edges = 0;
+
+		for(int k = 0; k < nodes.size(); k++) {
+			Node n = nodes.get(k);
+
+			// Size first: it is published after the edges it covers.
+			int sz = n.mSize;
+			Edge out[] = n.mEdges;
+
+			if(k + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			if(edges + sz > targets.length) {
+				targets = Arrays.copyOf(targets, Math.max(targets.length * 2, edges + sz));
+				weights = Arrays.copyOf(weights, targets.length);
+			}
+
+			for(int i = 0; i < sz; i++) {
+				Integer id = ids.get(out[i].node);
+				if(id == null) {
+					id = nodes.size();
+					ids.put(out[i].node, id);
+					nodes.add(out[i].node);
+				}
+				targets[edges] = id;
+				weights[edges++] = out[i].weight;
+			}
+			offsets[k + 1] = edges;
+		}
+
+		int tokens[] = new int[nodes.size() * mTupleLength];
+		Arrays.fill(tokens, -1);
+		for(int k = 0; k < nodes.size(); k++) {
+			int data[] = nodes.get(k).mIds;
+			System.arraycopy(data, 0, tokens, k * mTupleLength, data.length);
+		}
+
+		return new MarkovSnapshot<T>(mDictionary, mTupleLength, tokens,
+				Arrays.copyOf(offsets, nodes.size() + 1), Arrays.copyOf(targets, edges), Arrays.copyOf(weights, edges));
+	}
+
+	private Node findOrCreate(int ids[], int size) {
+		long packed = PackedTuple.pack(ids, size, mTupleLength);
+		if(packed != -1) {
+			long h = packed * 0x9E3779B97F4A7C15L;
+			return mStripes[(int) (h >>> 58) & (STRIPES - 1)].findOrCreate(packed, ids, size);
+		}
+
+		Key key = new Key(Arrays.copyOf(ids, size));
+		Node n = mWideNodes.get(key);
+		if(n != null) return n;
+
+		Node created = new Node(key.mIds, -1);
+		n = mWideNodes.putIfAbsent(key, created);
+		if(n != null) return n;
+
+		mNodeCount.incrementAndGet();
+		return created;
+	}
+
+	/**
+	 * One slice of the packed node index: an open-addressed table of nodes,
+	 * probed by their packed tuples. A slot is only ever filled once, with
+	 * a node whose packed tuple is final, so looking up needs no lock. A
+	 * lookup that misses, perhaps because it raced an insert or read a
+	 * table that has since grown, looks again under the lock.
+	 */
+	private class Stripe {
+		private volatile AtomicReferenceArray<Node> mTable = new AtomicReferenceArray<Node>(16);
+
+		/** Only touched while holding our lock */
+		private int mSize = 0;
+
+		Node findOrCreate(long packed, int ids[], int size) {
+			Node n = find(mTable, packed);
+			if(n != null) return n;
+			return create(packed, ids, size);
+		}
+
+		private synchronized Node create(long packed, int ids[], int size) {
+			Node n = find(mTable, packed);
+			if(n != null) return n;
+
+			// Keep the table at most half full so probes stay short.
+			if(++mSize * 2 > mTable.length()) grow();
+
+			n = new Node(Arrays.copyOf(ids, size), packed);
+			insert(mTable, n);
+			mNodeCount.incrementAndGet();
+			return n;
+		}
+
+		/** Only called while holding our lock. */
+		private void grow() {
+			AtomicReferenceArray<Node> table = mTable;
+			AtomicReferenceArray<Node> bigger = new AtomicReferenceArray<Node>(table.length() * 2);
+			for(int i = 0; i < table.length(); i++) {
+				Node n = table.get(i);
+				if(n != null) insert(bigger, n);
+			}
+			mTable = bigger;
+		}
+
+		private Node find(AtomicReferenceArray<Node> table, long packed) {
+			int mask = table.length() - 1;
+			for(int i = slot(packed, mask); ; i = (i + 1) & mask) {
+				Node n = table.get(i);
+				if(n == null || n.mPacked == packed) return n;
+			}
+		}
+
+		private void insert(AtomicReferenceArray<Node> table, Node n) {
+			int mask = table.length() - 1;
+			int i = slot(n.mPacked, mask);
+			while(table.get(i) != null) i = (i + 1) & mask;
+			table.set(i, n);
+		}
+
+		private int slot(long packed, int mask) {
+			// The stripe was picked from the top bits, so probe with the low ones.
+			return (int) (packed * 0x9E3779B97F4A7C15L >>> 32) & mask;
+		}
+	}
+
+	/**
+	 * A node whose edges can be read without locking. The edge array only
+	 * ever grows; a new edge is written into it before the size that
+	 * covers it is published.
+	 */
+	protected class Node {
+		/** Dictionary IDs of the data this node represents */
+		final int mIds[];
+
+		/** Our tuple packed (see PackedTuple), or -1 if it is too wide */
+		final long mPacked;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private volatile Edge mEdges[] = new ConcurrentMarkovChain.Edge[1];
+		private volatile int mSize = 0;
+
+		/** Sum of our edges' weights. Hubs like the header are bumped by every thread, so it's striped. */
+		private final LongAdder mTotal = new LongAdder();
+
+		/** Maps target nodes to edges once we have more than MarkovChain.EDGE_INDEX_THRESHOLD of them */
+		private volatile ConcurrentHashMap<Node, Edge> mEdgeIndex = null;
+
+		Node(int ids[], long packed) {
+			mIds = ids;
+			mPacked = packed;
+		}
+
+		/**
+		 * Add weight to our edge to the given node, creating it if needed.
+		 * @param n node to add weight to
+		 */
+		void promote(Node n) {
+			Edge e = find(n);
+
+			if(e == null) {
+				synchronized(this) {
+					e = find(n);
+					if(e == null) {
+						append(new Edge(n));
+						mTotal.increment();
+						return;
+					}
+				}
+			}
+
+			e.increment();
+			mTotal.increment();
+		}
+
+		private Edge find(Node n) {
+			ConcurrentHashMap<Node, Edge> index = mEdgeIndex;
+			if(index != null) return index.get(n);
+
+			int sz = mSize;
+			Edge edges[] = mEdges;
+			for(int i = 0; i < sz; i++) {
+				if(edges[i].node == n) return edges[i];
+			}
+			return null;
+		}
+
+		/** Only called while holding this node's lock. */
+		private void append(Edge e) {
+			Edge edges[] = mEdges;
+			int sz = mSize;
+			if(sz == edges.length) {
+				edges = Arrays.copyOf(edges, sz * 2);
+			}
+			edges[sz] = e;
+			mEdges = edges;
+
+			ConcurrentHashMap<Node, Edge> index = mEdgeIndex;
+			if(index != null) {
+				index.put(e.node, e);
+			}
+			else if(sz + 1 > MarkovChain.EDGE_INDEX_THRESHOLD) {
+				index = new ConcurrentHashMap<Node, Edge>();
+				for(int i = 0; i <= sz; i++) index.put(edges[i].node, edges[i]);
+				mEdgeIndex = index;
+			}
+
+			mSize = sz + 1;
+			mEdgeCount.incrementAndGet();
+		}
+
+		/**
+		 * Randomly choose the next node by weight.
+		 * @param rng source of randomness
+		 * @return next node, or null if there are no edges
+		 */
+		Node next(RandomSource rng) {
+			int sz = mSize;
+			if(sz == 0) return null;
+
+			Edge edges[] = mEdges;
+			int r = rng.nextInt((int) Math.max(1, Math.min(Integer.MAX_VALUE, mTotal.sum())));
+
+			for(int i = 0; i < sz; i++) {
+				r -= edges[i].weight;
+				if(r < 0) return edges[i].node;
+			}
+
+			// Weights we already walked past may have grown since we read the total.
+			return edges[sz - 1].node;
+		}
+	}
+
+	/**
+	 * An edge whose weight is bumped with compare-and-set.
+	 */
+	protected class Edge {
+		final Node node;
+		volatile int weight = 1;
+
+		Edge(Node n) {
+			node = n;
+		}
+
+		void increment() {
+			WEIGHT.incrementAndGet(this);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<ConcurrentMarkovChain.Edge> WEIGHT =
+		AtomicIntegerFieldUpdater.newUpdater(ConcurrentMarkovChain.Edge.class, "weight");
+
+	/**
+	 * Hash key for a tuple of token IDs too wide to pack.
+	 */
+	private static class Key {
+		private final int mIds[];
+		private final int mHash;
+
+		Key(int ids[]) {
+			mIds = ids;
+			mHash = Arrays.hashCode(ids);
+		}
+
+		public int hashCode() {
+			return mHash;
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return other.mHash == mHash && Arrays.equals(mIds, other.mIds);
+		}
+	}
+}
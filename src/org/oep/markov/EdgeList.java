@@ -0,0 +1,376 @@
+package org.oep.markov;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Reads, writes and merges chains saved as sorted text edge lists, so
+ * that chains trained on different machines can be combined without
+ * ever holding more than one of them in memory.
+ * <p>
+ * The first line of a file is <code>markov-edges</code> and the tuple
+ * length, separated by a tab. Every other line is one edge: the source
+ * tuple, the target tuple and the weight, separated by tabs. Tuples are
+ * their data separated by spaces, with backslash escapes for spaces,
+ * tabs, line breaks, backslashes and empty data. The header is written as
+ * an empty source and the trailer as an empty target. Edges are sorted by
+ * source and then target, which is what lets merge() stream.
+ * @author OEP
+ *
+ */
+public class EdgeList {
+	private static final String MAGIC = "markov-edges";
+
+	/**
+	 * Write a chain's edges to a file, sorted.
+	 * @param chain the chain to write
+	 * @param file where to write it
+	 * @throws IOException
+	 */
+	public static <T> void write(MarkovChain<T> chain, File file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+		try {
+			write(chain, out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a chain's edges, sorted. Data is written with toString().
+	 * @param chain the chain to write
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	public static <T> void write(MarkovChain<T> chain, Writer out) throws IOException {
+		chain.expire();
+		ArrayList<Line> lines = new ArrayList<Line>(chain.getEdgeCount());
+
+		for(MarkovChain<T>.Node n : chain.mNodeTable) {
+			String source = encode(n);
+			for(MarkovChain<T>.Node.Edge e : n.mEdges) {
+				lines.add(new Line(source + '\t' + encode(e.node), e.weight));
+			}
+		}
+
+		write(lines, chain.mTupleLength, out);
+	}
+
+	/**
+	 * Write a snapshot's edges, sorted, exactly as the chain it was taken
+	 * from would have been written. Data is written with toString().
+	 * @param snapshot the snapshot to write
+	 * @param out where to write it
+	 * @throws IOException
+	 */
+	public static <T> void write(MarkovSnapshot<T> snapshot, Writer out) throws IOException {
+		int offsets[] = snapshot.mOffsets;
+		ArrayList<Line> lines = new ArrayList<Line>(snapshot.getEdgeCount());
+
+		String names[] = new String[offsets.length - 1];
+		for(int n = 0; n < names.length; n++) {
+			int base = n * snapshot.mTupleLength, size = 0;
+			while(size < snapshot.mTupleLength && snapshot.mNodeTokens[base + size] >= 0) size++;
+			names[n] = encode(size, i -> snapshot.mDictionary.get(snapshot.mNodeTokens[base + i]));
+		}
+
+		for(int n = 0; n < names.length; n++) {
+			for(int i = offsets[n]; i < offsets[n + 1]; i++) {
+				lines.add(new Line(names[n] + '\t' + names[snapshot.mTargets[i]], snapshot.mWeights[i]));
+			}
+		}
+
+		write(lines, snapshot.mTupleLength, out);
+	}
+
+	private static void write(ArrayList<Line> lines, int tupleLength, Writer out) throws IOException {
+		Collections.sort(lines);
+
+		BufferedWriter w = new BufferedWriter(out);
+		w.write(MAGIC + '\t' + tupleLength + '\n');
+		for(Line line : lines) line.write(w);
+		w.flush();
+	}
+
+	/**
+	 * Read an edge list of strings into a chain.
+	 * @param file the edge list
+	 * @param chain the chain to add its edges to
+	 * @throws IOException
+	 */
+	public static void read(File file, MarkovChain<String> chain) throws IOException {
+		read(file, chain, Function.identity());
+	}
+
+	/**
+	 * Read an edge list into a chain, adding to whatever it already knows.
+	 * @param file the edge list
+	 * @param chain the chain to add its edges to
+	 * @param parser turns each piece of written data back into data
+	 * @throws IOException
+	 */
+	public static <T> void read(File file, MarkovChain<T> chain, Function<String, T> parser) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+		try {
+			read(in, chain, parser);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read an edge list into a chain, adding to whatever it already knows.
+	 * @param in the edge list
+	 * @param chain the chain to add its edges to
+	 * @param parser turns each piece of written data back into data
+	 * @throws IOException
+	 */
+	public static <T> void read(Reader in, MarkovChain<T> chain, Function<String, T> parser) throws IOException {
+		Source source = new Source(new BufferedReader(in));
+		if(source.mTupleLength != chain.mTupleLength) {
+			throw new IOException(
+					String.format("Edge list has tuple length %d. This structure: %d", source.mTupleLength, chain.mTupleLength)
+					);
+		}
+
+		while(source.mKey != null) {
+			int tab = source.mKey.indexOf('\t');
+			List<T> from = decode(source.mKey.substring(0, tab), parser);
+			List<T> to = decode(source.mKey.substring(tab + 1), parser);
+			chain.addTransition(from, to, source.mWeight);
+			source.advance();
+		}
+	}
+
+	/**
+	 * Merge sorted edge lists into one, summing the weights of edges that
+	 * appear in more than one. Only one line of each input is held in
+	 * memory at a time.
+	 * @param inputs edge lists to merge, all with the same tuple length
+	 * @param output where to write the merged list
+	 * @throws IOException
+	 */
+	public static void merge(List<File> inputs, File output) throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		ArrayList<Source> sources = new ArrayList<Source>();
+		BufferedWriter w = null;
+
+		try {
+			int tupleLength = -1;
+			for(File f : inputs) {
+				Source s = new Source(new BufferedReader(
+						new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)));
+				sources.add(s);
+
+				if(tupleLength < 0) tupleLength = s.mTupleLength;
+				if(s.mTupleLength != tupleLength) {
+					throw new IOException(
+							String.format("%s has tuple length %d, expected %d", f, s.mTupleLength, tupleLength)
+							);
+				}
+
+				if(s.mKey != null) queue.add(s);
+			}
+
+			if(tupleLength < 0) throw new IllegalArgumentException("Nothing to merge");
+
+			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+			w.write(MAGIC + '\t' + tupleLength + '\n');
+
+			while(!queue.isEmpty()) {
+				Source s = queue.poll();
+				Line line = new Line(s.mKey, s.mWeight);
+				advance(queue, s);
+
+				// Every other input with the same edge is at the front of the queue now.
+				while(!queue.isEmpty() && queue.peek().mKey.equals(line.mKey)) {
+					s = queue.poll();
+					line.mWeight = Math.addExact(line.mWeight, s.mWeight);
+					advance(queue, s);
+				}
+
+				line.write(w);
+			}
+		}
+		finally {
+			for(Source s : sources) s.mReader.close();
+			if(w != null) w.close();
+		}
+	}
+
+	private static void advance(PriorityQueue<Source> queue, Source s) throws IOException {
+		String previous = s.mKey;
+		s.advance();
+		if(s.mKey == null) return;
+
+		if(s.mKey.compareTo(previous) <= 0) {
+			throw new IOException(String.format("Edge list is not sorted at '%s'", s.mKey));
+		}
+		queue.add(s);
+	}
+
+	private static <T> String encode(MarkovChain<T>.Node n) {
+		return encode(n.data.size(), n.data::get);
+	}
+
+	private static String encode(int size, IntFunction<?> tuple) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < size; i++) {
+			if(i > 0) sb.append(' ');
+
+			String data = String.valueOf(tuple.apply(i));
+			if(data.length() == 0) sb.append("\\e");
+
+			for(int j = 0; j < data.length(); j++) {
+				char c = data.charAt(j);
+				switch(c) {
+				case ' ': sb.append("\\s"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\\': sb.append("\\\\"); break;
+				default: sb.append(c);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static <T> List<T> decode(String tuple, Function<String, T> parser) throws IOException {
+		ArrayList<T> data = new ArrayList<T>();
+		if(tuple.length() == 0) return data;
+
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i <= tuple.length(); i++) {
+			char c = (i < tuple.length()) ? tuple.charAt(i) : ' ';
+
+			if(c == ' ') {
+				data.add(parser.apply(sb.toString()));
+				sb.setLength(0);
+				continue;
+			}
+
+			if(c != '\\') {
+				sb.append(c);
+				continue;
+			}
+
+			if(++i == tuple.length()) throw new IOException(String.format("Dangling escape in '%s'", tuple));
+			switch(tuple.charAt(i)) {
+			case 's': sb.append(' '); break;
+			case 't': sb.append('\t'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case '\\': sb.append('\\'); break;
+			case 'e': break;
+			default: throw new IOException(String.format("Unknown escape in '%s'", tuple));
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * One edge: its source and target as written, and its weight.
+	 */
+	private static class Line implements Comparable<Line> {
+		final String mKey;
+		int mWeight;
+
+		Line(String key, int weight) {
+			mKey = key;
+			mWeight = weight;
+		}
+
+		void write(Writer w) throws IOException {
+			w.write(mKey);
+			w.write('\t');
+			w.write(Integer.toString(mWeight));
+			w.write('\n');
+		}
+
+		public int compareTo(Line other) {
+			return mKey.compareTo(other.mKey);
+		}
+	}
+
+	/**
+	 * An open edge list and the edge it is up to.
+	 */
+	private static class Source implements Comparable<Source> {
+		final BufferedReader mReader;
+		final int mTupleLength;
+		String mKey;
+		int mWeight;
+
+		Source(BufferedReader reader) throws IOException {
+			mReader = reader;
+
+			String first = reader.readLine();
+			if(first == null || !first.startsWith(MAGIC + '\t')) {
+				throw new IOException("Not an edge list");
+			}
+
+			try {
+				mTupleLength = Integer.parseInt(first.substring(MAGIC.length() + 1));
+			}
+			catch(NumberFormatException e) {
+				throw new IOException(String.format("Bad edge list header '%s'", first));
+			}
+
+			advance();
+		}
+
+		void advance() throws IOException {
+			String line = mReader.readLine();
+			if(line == null) {
+				mKey = null;
+				return;
+			}
+
+			int tab = line.lastIndexOf('\t');
+			if(tab <= 0 || line.indexOf('\t') == tab) {
+				throw new IOException(String.format("Bad edge '%s'", line));
+			}
+
+			try {
+				mWeight = Integer.parseInt(line.substring(tab + 1));
+			}
+			catch(NumberFormatException e) {
+				throw new IOException(String.format("Bad weight in '%s'", line));
+			}
+			mKey = line.substring(0, tab);
+		}
+
+		public int compareTo(Source other) {
+			return mKey.compareTo(other.mKey);
+		}
+	}
+
+	public static void main(String args[]) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: EdgeList <output> <input> [input ...]");
+			System.exit(1);
+		}
+
+		ArrayList<File> inputs = new ArrayList<File>();
+		for(int i = 1; i < args.length; i++) inputs.add(new File(args[i]));
+		merge(inputs, new File(args[0]));
+	}
+}
@@ -0,0 +1,120 @@
+package org.oep.markov;
+
+/**
+ * A binary indexed tree over a growable list of integer weights. Adding
+ * weight, appending a new weight and finding which weight a random number
+ * lands in all cost O(log n), so it suits nodes that sample and learn at
+ * the same time.
+ * @author OEP
+ *
+ */
+public class FenwickTree {
+	/** One-based tree storage; mTree[0] is unused */
+	private int mTree[];
+
+	/** How many weights we are holding */
+	private int mSize = 0;
+
+	public FenwickTree(int capacity) {
+		mTree = new int[Math.max(2, capacity + 1)];
+	}
+
+	/**
+	 * Build a tree out of the first n weights.
+	 * @param weights the weights to start with
+	 * @param n how many weights to use
+	 */
+	public FenwickTree(int weights[], int n) {
+		this(n);
+		for(int i = 0; i < n; i++) mTree[i + 1] = weights[i];
+
+		// Linear-time construction: push every partial sum up to its parent.
+		for(int i = 1; i <= n; i++) {
+			int parent = i + (i & -i);
+			if(parent <= n) mTree[parent] += mTree[i];
+		}
+		mSize = n;
+	}
+
+	/**
+	 * Get the number of weights in this tree.
+	 * @return number of weights
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Add to the weight at the given position.
+	 * @param i zero-based position
+	 * @param delta how much weight to add
+	 */
+	public void add(int i, int delta) {
+		for(i++; i <= mSize; i += i & -i) mTree[i] += delta;
+	}
+
+	/**
+	 * Add a new weight at the end of the list.
+	 * @param weight the weight of the new position
+	 */
+	public void append(int weight) {
+		if(mSize + 1 >= mTree.length) {
+			int grown[] = new int[mTree.length * 2];
+			System.arraycopy(mTree, 0, grown, 0, mTree.length);
+			mTree = grown;
+		}
+
+		// The new slot covers (i - lowbit(i), i], so it holds its own weight plus
+		// the weights already in the tree that fall inside that range.
+		int i = mSize + 1;
+		mTree[i] = weight + prefix(i - 1) - prefix(i - (i & -i));
+		mSize = i;
+	}
+
+	/**
+	 * Drop the last weight from the list.
+	 */
+	public void removeLast() {
+		// Slots past the end are never read, and append() rebuilds the one it reuses.
+		if(mSize > 0) mSize--;
+	}
+
+	/**
+	 * Sum of the first n weights.
+	 * @param n how many weights to sum
+	 * @return the sum
+	 */
+	public int prefix(int n) {
+		int sum = 0;
+		for(; n > 0; n -= n & -n) sum += mTree[n];
+		return sum;
+	}
+
+	/**
+	 * Sum of every weight in the tree.
+	 * @return total weight
+	 */
+	public int total() {
+		return prefix(mSize);
+	}
+
+	/**
+	 * Find the position a point in [0, total()) lands in.
+	 * @param r the point
+	 * @return zero-based position whose range of weight contains r
+	 */
+	public int find(int r) {
+		int pos = 0;
+		int step = Integer.highestOneBit(Math.max(1, mSize));
+
+		for(; step > 0; step >>= 1) {
+			int next = pos + step;
+			if(next <= mSize && mTree[next] <= r) {
+				pos = next;
+				r -= mTree[next];
+			}
+		}
+
+		return pos;
+	}
+}
@@ -0,0 +1,127 @@
+package org.oep.markov;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from long keys to non-negative int values.
+ * Lookups never box anything and the whole table is two flat arrays.
+ * @author OEP
+ *
+ */
+public class LongIntHashMap {
+	/** Value stored in empty slots, and returned by get() on a miss */
+	public static final int MISSING = -1;
+
+	private long mKeys[];
+	private int mValues[];
+	private int mSize = 0;
+	private int mMask;
+
+	public LongIntHashMap() {
+		this(8);
+	}
+
+	public LongIntHashMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+		Arrays.fill(mValues, MISSING);
+		mMask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mMask;
+	}
+
+	/**
+	 * Look up the value for a key.
+	 * @param key the key
+	 * @return the value, or MISSING if there is none
+	 */
+	public int get(long key) {
+		for(int i = slot(key); ; i = (i + 1) & mMask) {
+			if(mValues[i] == MISSING) return MISSING;
+			if(mKeys[i] == key) return mValues[i];
+		}
+	}
+
+	/**
+	 * Associate a key with a value, replacing any previous value.
+	 * @param key the key
+	 * @param value a non-negative value
+	 */
+	public void put(long key, int value) {
+		if(value < 0) throw new IllegalArgumentException("Values must be non-negative");
+
+		int i = slot(key);
+		for(; mValues[i] != MISSING; i = (i + 1) & mMask) {
+			if(mKeys[i] == key) {
+				mValues[i] = value;
+				return;
+			}
+		}
+
+		mKeys[i] = key;
+		mValues[i] = value;
+		mSize++;
+
+		// Keep the load factor at or under one half.
+		if(mSize * 2 > mKeys.length) rehash(mKeys.length * 2);
+	}
+
+	/**
+	 * Remove a key from the map.
+	 * @param key the key
+	 * @return the value it had, or MISSING
+	 */
+	public int remove(long key) {
+		int i = slot(key);
+		for(; mValues[i] != MISSING; i = (i + 1) & mMask) {
+			if(mKeys[i] == key) break;
+		}
+		int old = mValues[i];
+		if(old == MISSING) return MISSING;
+
+		// Backward-shift deletion so later probes still find their keys.
+		int hole = i;
+		for(int j = (hole + 1) & mMask; mValues[j] != MISSING; j = (j + 1) & mMask) {
+			int home = slot(mKeys[j]);
+			if(((j - home) & mMask) >= ((j - hole) & mMask)) {
+				mKeys[hole] = mKeys[j];
+				mValues[hole] = mValues[j];
+				hole = j;
+			}
+		}
+		mValues[hole] = MISSING;
+		mSize--;
+		return old;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		Arrays.fill(mValues, MISSING);
+		mSize = 0;
+	}
+
+	private void rehash(int capacity) {
+		long keys[] = mKeys;
+		int values[] = mValues;
+		allocate(capacity);
+
+		for(int i = 0; i < keys.length; i++) {
+			if(values[i] == MISSING) continue;
+			int j = slot(keys[i]);
+			while(mValues[j] != MISSING) j = (j + 1) & mMask;
+			mKeys[j] = keys[i];
+			mValues[j] = values[i];
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package org.oep.markov;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A frozen chain that generates straight out of a memory-mapped file.
+ * Opening one reads nothing but the header, the arrays stay in the page
+ * cache rather than the heap, and every process that maps the same file
+ * shares the same pages. Tokens are decoded the first time they are
+ * generated.
+ * <p>
+ * The file is a header of eight ints (magic number, version, tuple
+ * length, node count, edge count, token count and two reserved), then
+ * these arrays of ints: each node's tuple as token indexes padded with -1,
+ * where each node's edges start plus one past the end, each edge's target
+ * node, each edge's weight summed with the weights before it in the
+ * same node, and each node's shortest distance to the trailer, which
+ * generation uses to stay out of loops without an end. Then come where
+ * each token's bytes start plus one past the end, and the bytes of every
+ * token. Version 1 files have no distances; they are worked out when one
+ * is opened. It ends with a CRC32 like ChainFile,
+ * which opening doesn't check so that startup stays instant. Each
+ * section must fit in 2GB.
+ * @author OEP
+ *
+ * @param <T> the type of data the chain generates phrases for
+ */
+public class MappedMarkovChain<T> {
+	/** "MKMP" */
+	public static final int MAGIC = 0x4D4B4D50;
+
+	/** The format version this class writes */
+	public static final int VERSION = 2;
+
+	/** ID of the node that marks the beginning of a phrase */
+	public static final int HEADER = 0;
+
+	/** ID of the node that marks the end of a phrase */
+	public static final int TRAILER = 1;
+
+	private static final int HEADER_INTS = 8;
+
+	private final TokenCodec<T> mCodec;
+	private final int mTupleLength;
+	private final int mNodeCount;
+	private final int mEdgeCount;
+
+	private final IntBuffer mNodeTokens;
+	private final IntBuffer mOffsets;
+	private final IntBuffer mTargets;
+	private final IntBuffer mCumulative;
+	private final IntBuffer mDistances;
+	private final IntBuffer mTokenOffsets;
+	private final ByteBuffer mTokenBytes;
+
+	/** Tokens decoded so far, by token index */
+	private final AtomicReferenceArray<T> mTokens;
+
+	private final RandomSource.PerThread mRandom = new RandomSource.PerThread(RandomSource.create());
+
+	/**
+	 * Map a file written by write().
+	 * @param file the file to map
+	 * @param codec how to read the file's data
+	 * @throws IOException if the file can't be mapped or isn't a mapped chain
+	 */
+	public MappedMarkovChain(File file, TokenCodec<T> codec) throws IOException {
+		mCodec = codec;
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if(channel.size() < HEADER_INTS * 4) throw new IOException("Mapped chain is truncated");
+
+			IntBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_INTS * 4).asIntBuffer();
+			if(header.get(0) != MAGIC) throw new IOException("Not a mapped chain");
+			int version = header.get(1);
+			if(version < 1 || version > VERSION) {
+				throw new IOException(String.format("Unsupported mapped chain version %d", version));
+			}
+
+			mTupleLength = header.get(2);
+			mNodeCount = header.get(3);
+			mEdgeCount = header.get(4);
+			int tokenCount = header.get(5);
+			if(mTupleLength <= 0 || mNodeCount < 2 || mEdgeCount < 0 || tokenCount < 0) {
+				throw new IOException("Bad mapped chain header");
+			}
+
+			long position = HEADER_INTS * 4;
+			mNodeTokens = mapInts(channel, position, (long) mNodeCount * mTupleLength);
+			position += 4L * mNodeCount * mTupleLength;
+			mOffsets = mapInts(channel, position, mNodeCount + 1L);
+			position += 4L * (mNodeCount + 1);
+			mTargets = mapInts(channel, position, mEdgeCount);
+			position += 4L * mEdgeCount;
+			mCumulative = mapInts(channel, position, mEdgeCount);
+			position += 4L * mEdgeCount;
+			if(version >= 2) {
+				mDistances = mapInts(channel, position, mNodeCount);
+				position += 4L * mNodeCount;
+			}
+			else {
+				mDistances = IntBuffer.wrap(MarkovSnapshot.terminalDistances(mNodeCount, mOffsets::get, mTargets::get));
+			}
+			mTokenOffsets = mapInts(channel, position, tokenCount + 1L);
+			position += 4L * (tokenCount + 1);
+			mTokenBytes = map(channel, position, mTokenOffsets.get(tokenCount));
+
+			mTokens = new AtomicReferenceArray<T>(tokenCount);
+		}
+		finally {
+			// Mappings outlive the channel they came from.
+			channel.close();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long position, long bytes) throws IOException {
+		if(bytes < 0 || bytes > Integer.MAX_VALUE) {
+			throw new IOException(String.format("Mapped chain section of %d bytes is too big", bytes));
+		}
+		if(position + bytes > channel.size()) throw new IOException("Mapped chain is truncated");
+
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+	}
+
+	private static IntBuffer mapInts(FileChannel channel, long position, long count) throws IOException {
+		return map(channel, position, count * 4).asIntBuffer();
+	}
+
+	/**
+	 * Write a chain in the layout this class maps.
+	 * @param chain the chain to write
+	 * @param codec how to write its data
+	 * @param file where to write it
+	 * @throws IOException
+	 */
+	public static <T> void write(MarkovChain<T> chain, TokenCodec<T> codec, File file) throws IOException {
+		write(chain.snapshot(), codec, file);
+	}
+
+	/**
+	 * Write a snapshot in the layout this class maps. As with ChainFile the
+	 * file is written beside its destination and moved into place, so
+	 * processes that have the old file mapped keep their pages.
+	 * @param snapshot the graph to write
+	 * @param codec how to write its data
+	 * @param file where to write it
+	 * @throws IOException
+	 */
+	public static <T> void write(MarkovSnapshot<T> snapshot, TokenCodec<T> codec, File file) throws IOException {
+		TokenDictionary<T> dictionary = snapshot.mDictionary;
+		int nodeTokens[] = snapshot.mNodeTokens;
+		int offsets[] = snapshot.mOffsets;
+		int weights[] = snapshot.mWeights;
+		int nodes = offsets.length - 1;
+
+		// Number the tokens the graph actually uses; the dictionary may be shared.
+		int tokens[] = new int[dictionary.size()];
+		Arrays.fill(tokens, -1);
+		ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+		for(int id : nodeTokens) {
+			if(id < 0 || tokens[id] >= 0) continue;
+			tokens[id] = encoded.size();
+			encoded.add(codec.encode(dictionary.get(id)));
+		}
+
+		Path target = file.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+		FileChannel channel = FileChannel.open(temp,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ChainFile.Output out = new ChainFile.Output(channel);
+
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(snapshot.mTupleLength);
+			out.putInt(nodes);
+			out.putInt(snapshot.mTargets.length);
+			out.putInt(encoded.size());
+			out.putInt(0);
+			out.putInt(0);
+
+			for(int id : nodeTokens) out.putInt((id < 0) ? -1 : tokens[id]);
+			for(int offset : offsets) out.putInt(offset);
+			for(int node : snapshot.mTargets) out.putInt(node);
+
+			for(int n = 0; n < nodes; n++) {
+				int sum = 0;
+				for(int i = offsets[n]; i < offsets[n + 1]; i++) {
+					sum += weights[i];
+					out.putInt(sum);
+				}
+			}
+			for(int distance : snapshot.mDistances) out.putInt(distance);
+
+			int position = 0;
+			out.putInt(position);
+			for(byte bytes[] : encoded) {
+				position += bytes.length;
+				out.putInt(position);
+			}
+			for(byte bytes[] : encoded) out.putBytes(bytes);
+
+			out.finish();
+			channel.force(false);
+		}
+		finally {
+			channel.close();
+		}
+
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public int getTupleLength() {
+		return mTupleLength;
+	}
+
+	/**
+	 * Get the number of nodes in this graph, not counting header and trailer.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return mNodeCount - 2;
+	}
+
+	/**
+	 * Get the number of edges in this graph.
+	 * @return number of edges
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+
+	/**
+	 * Use the graph to randomly generate a possibly valid phrase.
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase() {
+		return makePhrase(mRandom.get());
+	}
+
+	/**
+	 * Generate a phrase drawing from the given source of randomness.
+	 * @param rng source of randomness
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase(RandomSource rng) {
+		ArrayList<T> phrase = new ArrayList<T>();
+		int current = step(HEADER, rng);
+
+		while(current >= 0 && current != TRAILER) {
+			int base = current * mTupleLength;
+			for(int i = base; i < base + mTupleLength; i++) {
+				int token = mNodeTokens.get(i);
+				if(token < 0) break;
+				phrase.add(getToken(token));
+			}
+			current = step(current, rng);
+		}
+
+		return phrase;
+	}
+
+	/**
+	 * Randomly choose the node after the given one, by binary search over
+	 * its running weight totals.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if there are no edges
+	 */
+	protected int next(int node, RandomSource rng) {
+		int lo = mOffsets.get(node);
+		int hi = mOffsets.get(node + 1) - 1;
+		if(hi < lo) return -1;
+
+		int r = rng.nextInt(mCumulative.get(hi));
+
+		// Find the first edge whose running total is past r.
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(mCumulative.get(mid) > r) hi = mid;
+			else lo = mid + 1;
+		}
+
+		return mTargets.get(lo);
+	}
+
+	/**
+	 * Choose the node after the given one, and if it can never reach the
+	 * trailer, choose again among the edges that get there fastest.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if there is no way to the trailer
+	 */
+	protected int step(int node, RandomSource rng) {
+		int next = next(node, rng);
+		if(next >= 0 && mDistances.get(next) == MarkovChain.UNREACHABLE) next = nextTerminal(node, rng);
+		return next;
+	}
+
+	/**
+	 * Randomly choose among the edges that lead to the trailer the
+	 * fastest, by weight.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if no edge leads to the trailer
+	 */
+	protected int nextTerminal(int node, RandomSource rng) {
+		int start = mOffsets.get(node), end = mOffsets.get(node + 1);
+
+		int min = MarkovChain.UNREACHABLE;
+		int total = 0;
+		for(int i = start, before = 0; i < end; i++) {
+			int d = mDistances.get(mTargets.get(i));
+			int w = mCumulative.get(i) - before;
+			before += w;
+			if(d < min) {
+				min = d;
+				total = w;
+			}
+			else if(d == min) {
+				total += w;
+			}
+		}
+
+		if(min == MarkovChain.UNREACHABLE || total == 0) return -1;
+
+		int r = rng.nextInt(total);
+		for(int i = start, before = 0; i < end; i++) {
+			int w = mCumulative.get(i) - before;
+			before += w;
+			if(mDistances.get(mTargets.get(i)) != min) continue;
+			r -= w;
+			if(r < 0) return mTargets.get(i);
+		}
+
+		throw new IllegalStateException("Something terrible happened.");
+	}
+
+	/**
+	 * Get a token, decoding it out of the file the first time it is asked for.
+	 * @param index the token's index in the file
+	 * @return the token
+	 */
+	protected T getToken(int index) {
+		T token = mTokens.get(index);
+		if(token != null) return token;
+
+		int start = mTokenOffsets.get(index);
+		int end = mTokenOffsets.get(index + 1);
+
+		// Absolute positions on our own view, so other threads' decodes don't interfere.
+		ByteBuffer view = mTokenBytes.duplicate();
+		view.position(start);
+		view.limit(end);
+		token = mCodec.decode(view, end - start);
+
+		mTokens.compareAndSet(index, null, token);
+		return mTokens.get(index);
+	}
+}
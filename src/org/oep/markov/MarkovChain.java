@@ -5,12 +5,20 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Random;
+import java.util.List;
+import java.util.RandomAccess;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.oep.markov.MarkovChain.Node.Edge;
 
@@ -21,14 +29,21 @@ import org.oep.markov.MarkovChain.Node.Edge;
  *
  * @param <T> the type of data you would like to generate phrases for (e.g., <code>java.lan
  */
-public class MarkovChain<T> {
+public class MarkovChain<T> implements MarkovModel<T> {
 	
-	/** HashMap to help us resolve data to the node that contains it */
-	protected HashMap<Tuple, MarkovChain<T>.Node> mNodes =
+	/** Every node in the graph, indexed by node ID. The header and trailer come first. */
+	protected ArrayList<MarkovChain<T>.Node> mNodeTable =
+		new ArrayList<MarkovChain<T>.Node>();
+	
+	/** Resolves a packed tuple (see PackedTuple) to the ID of the node that contains it */
+	protected LongIntHashMap mPackedNodes = new LongIntHashMap();
+	
+	/** HashMap to help us resolve tuples too wide to pack to the node that contains them */
+	protected HashMap<Tuple, MarkovChain<T>.Node> mWideNodes =
 		new HashMap<Tuple, MarkovChain<T>.Node>();
 	
-	/** Nodes use this to find the next node */
-	private Random RNG = new Random();
+	/** Nodes use this to find the next node. Each thread gets its own split of the root. */
+	private RandomSource.PerThread mRandom = new RandomSource.PerThread(RandomSource.create());
 	
 	/** Purely for informational purposes. This keeps track of how many edges our graph has. */
 	protected int mEdgeCount = 0;
@@ -45,30 +60,240 @@ public class MarkovChain<T> {
 	/** Stores how long our tuple length is (how many data elements a node has) */
 	protected int mTupleLength = 1;
 	
-	/** Pointer to the current node. Methods next() uses this */
-	protected Node mCurrent;
+	/** The cursor behind the chain's own next() methods */
+	private Cursor mCursor = new Cursor(false, 0, null);
+	
+	/** Shortest distance from each node to the trailer, by node ID. See getTerminalDistances(). */
+	protected volatile int mTerminalDistances[] = null;
+	
+	/** Set when an edge is added, which may shorten some distances */
+	protected volatile boolean mDistancesStale = true;
+	
+	/** Distance given to nodes that have no path to the trailer */
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+	
+	/** Out-degree past which a node samples through a Fenwick tree instead of a linear scan */
+	public static final int FENWICK_THRESHOLD = 16;
+	
+	/** Out-degree past which a node looks up its edges through a hash index */
+	public static final int EDGE_INDEX_THRESHOLD = 8;
+	
+	/** Maps our data to the int IDs that tuples actually hold. Only replaced by compactDictionary(). */
+	protected TokenDictionary<T> mDictionary;
+	
+	/** Scratch space removePhrase(), merge() and resolve() build tuples' IDs in */
+	private int mScratch[];
+	
+	/** Learns what addPhrase() is given. It journals the whole phrase itself. */
+	private PhraseBuilder mAdder;
+	
+	/** Reusable tuple for probing mWideNodes */
+	private Tuple mProbe;
+	
+	/** Where addPhrase() logs what it learns, if anywhere */
+	PhraseJournal<T> mJournal = null;
 	
-	/** Index for which data element is next in our tuple */
-	protected int mTupleIndex = 0;
+	/** Most edges we may hold before evicting, or 0 for no limit */
+	private int mEdgeBudget = 0;
 	
-	/** Keeps up with how long our gradual chain is */
-	protected int mElements = 0;
+	/** Most bytes getMemoryUsage() may report before we evict, or 0 for no limit */
+	private long mMemoryBudget = 0;
+	
+	/** Rough heap cost of a node: the node, its tuple, its edge list and its index entry */
+	public static final int NODE_BYTES = 160;
+	
+	/** Rough heap cost of an edge and its slot in the edge list */
+	public static final int EDGE_BYTES = 40;
+	
+	/** Eviction brings us down to this fraction of the budget, so it doesn't run on every phrase */
+	private static final double EVICTION_TARGET = 0.9;
+	
+	/** How many epochs of learning we remember, or 0 to remember everything. See setWindow(). */
+	private int mWindow = 0;
+	
+	/** The epoch we are learning into */
+	private int mEpoch = 0;
+	
+	/** Set when edges have expired, which may cut some nodes off from the trailer */
+	protected volatile boolean mPathsRemoved = false;
+	
+	/** Nodes that lost their last incoming edge to expiry, waiting to be reclaimed */
+	private ArrayList<Node> mOrphans = new ArrayList<Node>();
+	
+	/** Where the expiry sweep picks up in mNodeTable */
+	private int mSweep = 0;
+	
+	/** How many nodes the expiry sweep refreshes after each phrase */
+	private static final int SWEEP_STEP = 4;
 	
 	public MarkovChain(int n) {
+		this(n, new TokenDictionary<T>());
+	}
+	
+	/**
+	 * Make a chain that resolves its data through a dictionary which may
+	 * be shared with other chains over the same vocabulary.
+	 * @param n tuple length
+	 * @param dictionary the dictionary to intern data with
+	 */
+	public MarkovChain(int n, TokenDictionary<T> dictionary) {
 		if(n <= 0) throw new IllegalArgumentException("Can't have MarkovChain with tuple length <= 0");
+		if(dictionary == null) throw new IllegalArgumentException("Can't have MarkovChain without a dictionary");
 		
 		mTupleLength = n;
+		mDictionary = dictionary;
+		mScratch = new int[n];
+		mProbe = new Tuple();
+		mAdder = new PhraseBuilder(false);
+	}
+	
+	/**
+	 * Get the dictionary this chain interns its data with.
+	 * @return the dictionary
+	 */
+	public TokenDictionary<T> getDictionary() {
+		return mDictionary;
+	}
+	
+	/**
+	 * Dictionaries only ever grow, so a chain that forgets (through a
+	 * window, eviction or removePhrase()) keeps every token it has ever
+	 * seen. This moves the chain onto a new dictionary holding only the
+	 * tokens its nodes still use, if at least a quarter of the old one has
+	 * gone unused. The old dictionary is left as it was, so snapshots and
+	 * other chains sharing it stay valid; call getDictionary() afterwards
+	 * to share the new one. Nothing else may be using the chain meanwhile.
+	 * @return true if the chain got a new dictionary
+	 */
+	public boolean compactDictionary() {
+		expire();
+		
+		TokenDictionary<T> old = mDictionary;
+		int map[] = new int[old.size()];
+		Arrays.fill(map, -1);
+		
+		int used = 0;
+		for(int i = 2; i < mNodeTable.size(); i++) {
+			Tuple data = mNodeTable.get(i).data;
+			for(int j = 0; j < data.mSize; j++) {
+				if(map[data.mIds[j]] < 0) {
+					map[data.mIds[j]] = 0;
+					used++;
+				}
+			}
+		}
+		if(used * 4L > old.size() * 3L) return false;
+		
+		// Renumber every tuple in place, in the order the nodes first use each token.
+		Arrays.fill(map, -1);
+		TokenDictionary<T> dictionary = new TokenDictionary<T>();
+		for(int i = 2; i < mNodeTable.size(); i++) {
+			Tuple data = mNodeTable.get(i).data;
+			for(int j = 0; j < data.mSize; j++) {
+				int id = data.mIds[j];
+				if(map[id] < 0) map[id] = dictionary.intern(old.get(id));
+				data.mIds[j] = map[id];
+			}
+			data.mSealed = false;
+		}
+		mDictionary = dictionary;
+		
+		// Smaller IDs may pack where they didn't before, so both indexes start over.
+		mPackedNodes.clear();
+		mWideNodes.clear();
+		for(int i = 2; i < mNodeTable.size(); i++) {
+			Node n = mNodeTable.get(i);
+			long key = n.data.pack();
+			if(key != -1) mPackedNodes.put(key, i);
+			else mWideNodes.put(n.data, n);
+		}
+		return true;
+	}
+	
+	/**
+	 * Log every phrase learned through addPhrase() or addPhrases() to a
+	 * journal, so the chain can be recovered after a crash. See PhraseJournal.
+	 * @param journal the journal, or null to stop logging
+	 */
+	public void setJournal(PhraseJournal<T> journal) {
+		mJournal = journal;
 	}
 	
 	/**
 	 * Forget everything.
 	 */
 	public void clear() {
-		mNodes.clear();
+		mNodeTable.clear();
+		mPackedNodes.clear();
+		mWideNodes.clear();
 		mNodeCount = 0;
 		mEdgeCount = 0;
+		mTerminalDistances = null;
+		mDistancesStale = true;
+		mPathsRemoved = false;
+		mOrphans.clear();
+		mSweep = 0;
 		mHeader = makeNode();
 		mTrailer = makeNode();
+		mCursor.reset();
+	}
+	
+	/**
+	 * Build alias tables for every node so that generation draws each
+	 * transition in constant time. Call this once a chain has finished
+	 * learning; any node that learns something afterwards drops its table
+	 * and falls back to the linear scan until the next freeze.
+	 */
+	public void freeze() {
+		for(Node n : mNodeTable) n.buildAliasTable();
+	}
+	
+	/**
+	 * Freeze the current graph into a compact, read-only snapshot. The
+	 * snapshot shares this chain's dictionary but nothing else, so it stays
+	 * valid however this chain changes afterwards, and any number of threads
+	 * can generate from it without locking.
+	 * @return snapshot of the graph as it is now
+	 */
+	public MarkovSnapshot<T> snapshot() {
+		return snapshotLater().get();
+	}
+	
+	/**
+	 * Copy the graph now, but leave building the snapshot's alias tables,
+	 * which is most of the work, to whoever calls the result. That can be
+	 * another thread, and it can be after this chain has changed, so a
+	 * learner only has to hold its lock for the copy.
+	 * @return builds the snapshot of the graph as it was when this was called
+	 * @see #snapshot()
+	 */
+	public Supplier<MarkovSnapshot<T>> snapshotLater() {
+		expire();
+		int nodes = mNodeTable.size();
+		int tokens[] = new int[nodes * mTupleLength];
+		int offsets[] = new int[nodes + 1];
+		
+		Arrays.fill(tokens, -1);
+		for(Node n : mNodeTable) {
+			System.arraycopy(n.data.mIds, 0, tokens, n.id * mTupleLength, n.data.size());
+			offsets[n.id + 1] = offsets[n.id] + n.mEdges.size();
+		}
+		
+		int targets[] = new int[offsets[nodes]];
+		int weights[] = new int[offsets[nodes]];
+		for(Node n : mNodeTable) {
+			int slot = offsets[n.id];
+			for(Node.Edge e : n.mEdges) {
+				targets[slot] = e.node.id;
+				weights[slot] = e.weight;
+				slot++;
+			}
+		}
+		
+		// Compaction replaces the dictionary rather than changing it, so this one stays valid.
+		final TokenDictionary<T> dictionary = mDictionary;
+		final int tupleLength = mTupleLength;
+		return () -> new MarkovSnapshot<T>(dictionary, tupleLength, tokens, offsets, targets, weights);
 	}
 	
 	/**
@@ -84,7 +309,65 @@ public class MarkovChain<T> {
 	 * @return number of nodes
 	 */
 	public int getNodeCount() {
-		return mNodes.size();
+		return mNodeTable.size() - 2;
+	}
+	
+	/**
+	 * Get every node that holds data, leaving out the header and trailer.
+	 * @return list of nodes in order of ID
+	 */
+	protected List<Node> getNodes() {
+		return mNodeTable.subList(2, mNodeTable.size());
+	}
+	
+	/**
+	 * Get a new cursor for walking this chain one element at a time.
+	 * The cursor stops at the end of a phrase and has no maximum length.
+	 * @return new cursor
+	 */
+	public Cursor cursor() {
+		return cursor(false, 0);
+	}
+	
+	/**
+	 * Get a new cursor for walking this chain one element at a time.
+	 * @param loop whether the cursor starts a new phrase when one ends
+	 * @param maxLength number of elements after which the cursor heads for
+	 * the end of the phrase as fast as it can, or 0 for no limit
+	 * @return new cursor
+	 */
+	public Cursor cursor(boolean loop, int maxLength) {
+		return new Cursor(loop, maxLength, mRandom.split());
+	}
+	
+	/**
+	 * Get a new cursor that draws from the given source of randomness.
+	 * @param loop whether the cursor starts a new phrase when one ends
+	 * @param maxLength number of elements after which the cursor heads for
+	 * the end of the phrase as fast as it can, or 0 for no limit
+	 * @param random the cursor's own source of randomness
+	 * @return new cursor
+	 */
+	public Cursor cursor(boolean loop, int maxLength, RandomSource random) {
+		return new Cursor(loop, maxLength, random);
+	}
+	
+	/**
+	 * Replace the root that every thread's and every new cursor's source
+	 * of randomness is split from.
+	 * @param random the new root
+	 */
+	public void setRandomSource(RandomSource random) {
+		mRandom = new RandomSource.PerThread(random);
+	}
+	
+	/**
+	 * Seed the chain so that generation is reproducible: the same seed,
+	 * graph and sequence of calls give the same output.
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		setRandomSource(RandomSource.create(seed));
 	}
 	
 	/**
@@ -92,8 +375,7 @@ public class MarkovChain<T> {
 	 * tuple index to start from the top.
 	 */
 	public void reset() {
-		mCurrent = null;
-		mTupleIndex = 0;
+		mCursor.reset();
 	}
 	
 	/**
@@ -124,246 +406,1071 @@ public class MarkovChain<T> {
 	
 	
 	/**
-	 * Get next element pointed by our single-element.
-	 * This will also update the data structure to get ready
-	 * to serve the next data element.
+	 * Get next element from the chain's own cursor. Code that wants
+	 * more than one walk at a time should ask for cursor() instead.
 	 * @param loop if you would like to loop
 	 * @return data element at the current node tuple index
 	 */
 	public T next(boolean loop, int maxLength) {
-		// In case mCurrent hasn't been initialized yet.
-		if(mCurrent == null || mCurrent == mHeader) mCurrent = mHeader.next();
-
-		// Handle behavior in case we're at the trailer at the start.
-		if(mCurrent == mTrailer) {
-			if(loop == true) {
+		return mCursor.next(loop, maxLength);
+	}
+	
+	/**
+	 * Interpret a list of data as a possible phrase. Tuples are resolved
+	 * through a scratch buffer, so learning data we have seen before
+	 * allocates nothing.
+	 * @param phrase to learn
+	 */
+	public void addPhrase(List<T> phrase) {
+		if(phrase == null || phrase.size() == 0) return;
+		if(mJournal != null) mJournal.append(phrase);
+		
+		// Iterators are garbage too; index straight into lists that allow it.
+		if(!(phrase instanceof RandomAccess)) phrase = new ArrayList<T>(phrase);
+		
+		mAdder.start();
+		for(int i = 0; i < phrase.size(); i++) mAdder.add(phrase.get(i));
+		mAdder.finish();
+	}
+	
+	/**
+	 * Interpret an array of data as a valid phrase.
+	 * @param phrase to interpret
+	 */
+	public void addPhrase(T phrase[]) {
+		if(phrase == null || phrase.length == 0) return;
+		if(mJournal != null) mJournal.append(phrase);
+		
+		mAdder.start();
+		for(int i = 0; i < phrase.length; i++) mAdder.add(phrase[i]);
+		mAdder.finish();
+	}
+	
+	/**
+	 * Unlearn a phrase learned by addPhrase(), taking one from the weight
+	 * of every edge along its path for each time the path uses it. Edges
+	 * left with no weight are dropped, and nodes nothing points at any
+	 * more are reclaimed along with windowed chains' expired ones. When
+	 * windowed, the weight comes out of the newest epochs first. Journaled
+	 * chains log the removal.
+	 * @param phrase to unlearn
+	 * @return false if the chain has no such path, or not enough weight on
+	 * it, in which case nothing changes
+	 */
+	public boolean removePhrase(List<T> phrase) {
+		return removePhrase(phrase, -1);
+	}
+	
+	/**
+	 * Unlearn a phrase learned in a particular epoch, taking the weight out
+	 * of that epoch only, so that phrases learned since keep theirs.
+	 * @param phrase to unlearn
+	 * @param epoch epoch it was learned in, as getEpoch() said then, or -1
+	 * for the newest epochs first
+	 * @return false if the chain has no such path, or not enough weight on
+	 * it from that epoch, in which case nothing changes
+	 * @see #removePhrase(List)
+	 */
+	public boolean removePhrase(List<T> phrase, int epoch) {
+		if(phrase == null || phrase.size() == 0) return false;
+		if(!(phrase instanceof RandomAccess)) phrase = new ArrayList<T>(phrase);
+		
+		// Resolve the whole path before touching it, without interning anything.
+		ArrayList<Node> path = new ArrayList<Node>();
+		path.add(mHeader);
+		
+		int fill = 0;
+		for(int i = 0; i < phrase.size(); i++) {
+			int id = mDictionary.lookup(phrase.get(i));
+			if(id < 0) return false;
+			mScratch[fill++] = id;
+			
+			if(fill == mTupleLength || i == phrase.size() - 1) {
+				Node n = find(mScratch, fill);
+				if(n == null) return false;
+				path.add(n);
+				fill = 0;
+			}
+		}
+		path.add(mTrailer);
+		
+		// A path can take the same edge more than once, and each time needs its own weight.
+		HashMap<Long, Integer> uses = new HashMap<Long, Integer>();
+		for(int i = 0; i + 1 < path.size(); i++) {
+			Node n = path.get(i);
+			Node next = path.get(i + 1);
+			n.refresh();
+			
+			int e = n.findEdge(next);
+			if(e < 0) return false;
+			
+			long key = ((long) n.id << 32) | next.id;
+			Integer used = uses.get(key);
+			int count = (used == null) ? 1 : used + 1;
+			if(n.mEdges.get(e).weight(epoch) < count) return false;
+			uses.put(key, count);
+		}
+		
+		for(int i = 0; i + 1 < path.size(); i++) path.get(i).demote(path.get(i + 1), 1, epoch);
+		if(mJournal != null) mJournal.appendRemoval(phrase);
+		settle();
+		return true;
+	}
+	
+	/**
+	 * Unlearn an array of data learned as a phrase.
+	 * @param phrase to unlearn
+	 * @return false if the chain has no such path, in which case nothing changes
+	 * @see #removePhrase(List)
+	 */
+	public boolean removePhrase(T phrase[]) {
+		if(phrase == null) return false;
+		return removePhrase(Arrays.asList(phrase));
+	}
+	
+	/**
+	 * Learn a batch of phrases using every core in the common fork-join pool.
+	 * @param phrases phrases to learn
+	 * @see #addPhrases(Stream, ForkJoinPool)
+	 */
+	public void addPhrases(Iterable<? extends List<T>> phrases) {
+		addPhrases(StreamSupport.stream(phrases.spliterator(), false), ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Learn a stream of phrases using every core in the common fork-join pool.
+	 * @param phrases phrases to learn
+	 * @see #addPhrases(Stream, ForkJoinPool)
+	 */
+	public void addPhrases(Stream<? extends List<T>> phrases) {
+		addPhrases(phrases, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Learn a stream of phrases in parallel. The stream is split across
+	 * the pool's workers and each worker trains a private shard sharing
+	 * our dictionary, so training never locks. The first worker to start
+	 * trains straight into this chain; every other shard is merged in
+	 * once the stream is done. The result is the same graph addPhrase()
+	 * would have built one phrase at a time, unless a budget made us evict,
+	 * in which case each shard evicts within its share of the budget first.
+	 * @param phrases phrases to learn
+	 * @param pool the pool to train in
+	 */
+	public void addPhrases(final Stream<? extends List<T>> phrases, ForkJoinPool pool) {
+		final ConcurrentHashMap<Thread, MarkovChain<T>> shards = new ConcurrentHashMap<Thread, MarkovChain<T>>();
+		final AtomicBoolean claimed = new AtomicBoolean();
+		
+		// A parallel stream runs in whichever pool its terminal operation starts in.
+		pool.submit(() -> phrases.parallel().forEach(phrase -> {
+			MarkovChain<T> shard = shards.computeIfAbsent(Thread.currentThread(), t -> {
+				if(claimed.compareAndSet(false, true)) return this;
+				MarkovChain<T> created = new MarkovChain<T>(mTupleLength, mDictionary);
+				configureShard(created, pool.getParallelism());
+				return created;
+			});
+			
+			// Shards have no journal of their own; the journal takes appends from any thread.
+			if(shard != this && mJournal != null) mJournal.append(phrase);
+			shard.addPhrase(phrase);
+		})).join();
+		
+		for(MarkovChain<T> shard : shards.values()) {
+			if(shard != this) merge(shard);
+		}
+	}
+	
+	/**
+	 * Set up a chain to learn part of a batch for us before being merged
+	 * back in. It gets our window and epoch, and an even share of our
+	 * budgets, so that it can't grow without limit before it is merged.
+	 * @param shard a new chain sharing our dictionary
+	 * @param shards how many shards the batch is split between
+	 */
+	void configureShard(MarkovChain<T> shard, int shards) {
+		shard.mWindow = mWindow;
+		shard.mEpoch = mEpoch;
+		shards = Math.max(1, shards);
+		if(mEdgeBudget > 0) shard.mEdgeBudget = Math.max(1, mEdgeBudget / shards);
+		if(mMemoryBudget > 0) shard.mMemoryBudget = Math.max(1, mMemoryBudget / shards);
+	}
+	
+	/**
+	 * Merge another chain into this one, as if every phrase it learned had
+	 * been fed to us as well. Nodes are matched by tuple value, weights of
+	 * matching edges are summed and everything else is copied across. If
+	 * the other chain uses a different dictionary its data is interned
+	 * into ours as we go.
+	 * @param other the chain to merge in, which is left as it was
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void merge(MarkovChain<T> other) {
+		if(other.mTupleLength != mTupleLength) {
+			throw new IllegalArgumentException(
+					String.format("Can't merge tuple length %d into tuple length %d", other.mTupleLength, mTupleLength)
+					);
+		}
+		
+		// Only what the other chain still remembers is merged.
+		other.expire();
+		
+		// Token IDs only mean the same thing when the dictionary is shared.
+		int tokens[] = null;
+		if(other.mDictionary != mDictionary) {
+			tokens = new int[other.mDictionary.size()];
+			Arrays.fill(tokens, -1);
+		}
+		
+		// Resolve every node of the other chain to ours, by its node ID.
+		int count = other.mNodeTable.size();
+		Node map[] = new MarkovChain.Node[count];
+		map[0] = mHeader;
+		map[1] = mTrailer;
+		for(int i = 2; i < count; i++) {
+			Tuple data = other.mNodeTable.get(i).data;
+			if(tokens == null) {
+				map[i] = findOrCreate(data.mIds, data.mSize);
+				continue;
+			}
+			
+			for(int j = 0; j < data.mSize; j++) {
+				int id = data.mIds[j];
+				if(tokens[id] < 0) tokens[id] = mDictionary.intern(other.mDictionary.get(id));
+				mScratch[j] = tokens[id];
+			}
+			map[i] = findOrCreate(mScratch, data.mSize);
+		}
+		
+		for(int i = 0; i < count; i++) {
+			for(MarkovChain<T>.Node.Edge e : other.mNodeTable.get(i).mEdges) {
+				map[i].promote(map[e.node.id], e.weight);
+			}
+		}
+		
+		settle();
+	}
+	
+	/**
+	 * Add weight to the transition from one tuple to the next, creating
+	 * the nodes and edge as needed. An empty source is the start of a
+	 * phrase and an empty target is the end of one.
+	 * @param from the tuple the transition leaves
+	 * @param to the tuple the transition arrives at
+	 * @param weight how much weight to add, which must be positive
+	 */
+	public void addTransition(List<T> from, List<T> to, int weight) {
+		if(weight <= 0) {
+			throw new IllegalArgumentException(String.format("Invalid edge weight %d", weight));
+		}
+		
+		Node source = (from.size() == 0) ? mHeader : resolve(from);
+		Node target = (to.size() == 0) ? mTrailer : resolve(to);
+		source.promote(target, weight);
+		settle();
+	}
+	
+	Node resolve(List<T> tuple) {
+		if(tuple.size() > mTupleLength) {
+			throw new IllegalArgumentException(
+					String.format("Invalid tuple length %d. This structure: %d", tuple.size(), mTupleLength)
+					);
+		}
+		
+		for(int i = 0; i < tuple.size(); i++) mScratch[i] = mDictionary.intern(tuple.get(i));
+		return findOrCreate(mScratch, tuple.size());
+	}
+	
+	/**
+	 * Use our graph to randomly generate a possibly valid phrase
+	 * from our data structure.
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase() {
+		return makePhrase(mRandom.get());
+	}
+	
+	/**
+	 * Generate a phrase drawing from the given source of randomness.
+	 * @param rng source of randomness
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase(RandomSource rng) {
+		// Go ahead and choose our first node, which mustn't be a dead end either.
+		Node current = mHeader.next(rng);
+		if(current != null && !canTerminate(current)) current = mHeader.nextTerminal(rng);
+		
+		// We will put our generated phrase in here.
+		ArrayList<T> phrase = new ArrayList<T>();
+		
+		// As a safety, check for nulls
+		// Iterate til we get to the trailer
+		while(current != null && current != mTrailer) {
+			// Iterate over the data tuple in the node and add stuff to the phrase
+			// if it is non-null
+			for(int i = 0; i < current.data.size(); i++) {
+				T data = current.data.get(i);
+				
+				if(data != null)
+					phrase.add(data);
+			}
+			
+			// Never wander somewhere we can't come back from.
+			Node next = current.next(rng);
+			if(next != null && !canTerminate(next)) next = current.nextTerminal(rng);
+			current = next;
+		}
+		
+		// Out pops pure genius
+		return phrase;
+	}
+	
+	
+	/**
+	 * Only remember what was learned in the last few epochs. Each edge
+	 * keeps a ring of per-epoch counts, so once advanceEpoch() has been
+	 * called this many times, what was learned before it no longer
+	 * counts. Expired edges are dropped the next time their node learns
+	 * or is swept, and nodes nothing points at any more are reclaimed in
+	 * batches. Everything already learned starts out in the current epoch.
+	 * @param epochs how many epochs to remember, or 0 to remember everything
+	 */
+	public void setWindow(int epochs) {
+		expire();
+		mWindow = Math.max(0, epochs);
+		
+		for(Node n : mNodeTable) {
+			n.mRefreshed = mEpoch;
+			for(Node.Edge e : n.mEdges) {
+				e.counts = null;
+				e.epoch = mEpoch;
+			}
+		}
+	}
+	
+	public int getWindow() {
+		return mWindow;
+	}
+	
+	public int getEpoch() {
+		return mEpoch;
+	}
+	
+	/**
+	 * Start learning into a new epoch, which expires the oldest one in the
+	 * window. This doesn't touch any edges itself; they catch up lazily.
+	 */
+	public void advanceEpoch() {
+		if(mWindow == 0) throw new IllegalStateException("Can't advance the epoch of a chain without a window");
+		
+		mEpoch++;
+		mPathsRemoved = true;
+	}
+	
+	/**
+	 * Bring every edge up to the current epoch and reclaim every orphaned
+	 * node, so that the graph holds exactly what the window remembers and
+	 * nothing removePhrase() took away. Node IDs may be renumbered.
+	 */
+	public void expire() {
+		if(mWindow > 0) {
+			for(Node n : mNodeTable) n.refresh();
+		}
+		reclaim();
+	}
+	
+	/**
+	 * Cap how many edges the chain may hold. Once learning takes it past
+	 * the cap, the lightest edges are evicted, along with any node left
+	 * with nothing pointing at it, until it is back under.
+	 * @param edges most edges to hold, or 0 for no limit
+	 */
+	public void setEdgeBudget(int edges) {
+		mEdgeBudget = Math.max(0, edges);
+		settle();
+	}
+	
+	/**
+	 * Cap roughly how much heap the graph may take, as reported by
+	 * getMemoryUsage(). Evicts the same way as setEdgeBudget().
+	 * @param bytes most bytes to use, or 0 for no limit
+	 */
+	public void setMemoryBudget(long bytes) {
+		mMemoryBudget = Math.max(0, bytes);
+		settle();
+	}
+	
+	/**
+	 * Estimate how much heap the graph takes, from its node and edge
+	 * counts. Hubs' indexes and the dictionary aren't counted.
+	 * @return estimated bytes
+	 */
+	public long getMemoryUsage() {
+		return (long) mNodeTable.size() * NODE_BYTES + (long) mEdgeCount * EDGE_BYTES;
+	}
+	
+	/**
+	 * Evict if we are over budget, and when windowed, sweep a few nodes'
+	 * expired edges away. Nodes orphaned by expiry or removePhrase() are
+	 * reclaimed once there are enough to be worth renumbering for. Only called between phrases,
+	 * when nothing is holding on to a node.
+	 */
+	void settle() {
+		if(mWindow > 0) {
+			for(int i = 0; i < SWEEP_STEP && i < mNodeTable.size(); i++) {
+				if(mSweep >= mNodeTable.size()) mSweep = 0;
+				mNodeTable.get(mSweep++).refresh();
+			}
+		}
+		if(mOrphans.size() > Math.max(1024, mNodeTable.size() / 8)) reclaim();
+		
+		if(mEdgeBudget > 0 && mEdgeCount > mEdgeBudget) {
+			evict(mEdgeCount - (int) (mEdgeBudget * EVICTION_TARGET));
+		}
+		
+		// Guess what each edge frees from the average, nodes included, and go round again if that was short.
+		while(mMemoryBudget > 0 && getMemoryUsage() > mMemoryBudget && mEdgeCount > 0) {
+			long usage = getMemoryUsage();
+			long excess = usage - (long) (mMemoryBudget * EVICTION_TARGET);
+			long perEdge = Math.max(EDGE_BYTES, usage / mEdgeCount);
+			evict((int) Math.min(mEdgeCount, (excess + perEdge - 1) / perEdge));
+		}
+	}
+	
+	/**
+	 * Evict the given number of edges, lightest first, then every node
+	 * that leaves orphaned or unable to reach the trailer. A histogram of
+	 * edge weights, exact for small weights and by powers of two above,
+	 * picks the weight to cut at.
+	 * Node IDs are renumbered afterwards, so cursors should not be
+	 * walking the chain while this happens.
+	 * @param count how many edges to evict
+	 */
+	protected void evict(int count) {
+		if(count <= 0) return;
+		expire();
+		
+		int histogram[] = new int[64 + 32];
+		for(Node n : mNodeTable) {
+			for(Node.Edge e : n.mEdges) histogram[bucket(e.weight)]++;
+		}
+		
+		// Everything below the cutoff bucket goes, and enough of the cutoff bucket to make up the rest.
+		int cutoff = 0, below = 0;
+		while(cutoff < histogram.length - 1 && below + histogram[cutoff] < count) below += histogram[cutoff++];
+		int partial = count - below;
+		
+		for(Node n : mNodeTable) {
+			ArrayList<Node.Edge> edges = n.mEdges;
+			int kept = 0;
+			
+			for(int i = 0; i < edges.size(); i++) {
+				Node.Edge e = edges.get(i);
+				int b = bucket(e.weight);
 				
-				if(maxLength > 0 && mElements >= maxLength) mCurrent = mHeader.nextTerminal();
-				else mCurrent = mHeader.next();
+				if(b > cutoff || (b == cutoff && partial <= 0)) {
+					edges.set(kept++, e);
+					continue;
+				}
 				
-				mTupleIndex = 0;
+				if(b == cutoff) partial--;
+				mEdgeCount--;
+				if(--e.node.mInDegree == 0 && !e.node.isTerminal()) mOrphans.add(e.node);
 			}
-			// No more data for non-loopers
-			else {
-				return null;
+			
+			if(kept == edges.size()) continue;
+			
+			// The index and Fenwick tree still cover the edges that just went.
+			edges.subList(kept, edges.size()).clear();
+			n.edgesRemoved();
+			mPathsRemoved = true;
+		}
+		
+		reclaim();
+		pruneDeadEnds();
+	}
+	
+	/**
+	 * Drop every edge into a node that can't reach the trailer, which
+	 * orphans those nodes for reclaim(). Eviction can take the only way
+	 * out of a cycle, and nothing that walks the chain without our
+	 * distance table should be able to wander into it and never come back.
+	 * Nothing on a path to the trailer goes through such a node, so one
+	 * pass finds them all.
+	 */
+	private void pruneDeadEnds() {
+		int distances[] = getTerminalDistances();
+		boolean pruned = false;
+		
+		for(Node n : mNodeTable) {
+			ArrayList<Node.Edge> edges = n.mEdges;
+			int kept = 0;
+			
+			for(int i = 0; i < edges.size(); i++) {
+				Node.Edge e = edges.get(i);
+				if(distances[e.node.id] != UNREACHABLE) {
+					edges.set(kept++, e);
+					continue;
+				}
+				
+				mEdgeCount--;
+				if(--e.node.mInDegree == 0 && !e.node.isTerminal()) mOrphans.add(e.node);
 			}
+			
+			if(kept == edges.size()) continue;
+			edges.subList(kept, edges.size()).clear();
+			n.edgesRemoved();
+			pruned = true;
 		}
 		
-		T returnValue = mCurrent.getData(mTupleIndex);
+		if(!pruned) return;
+		mPathsRemoved = true;
+		reclaim();
+	}
+	
+	/**
+	 * Drop every orphan that is still an orphan, along with the nodes
+	 * that leaves orphaned in turn, then renumber what's left.
+	 */
+	private void reclaim() {
+		if(mOrphans.isEmpty()) return;
 		
-		mTupleIndex++;
-		mElements++;
+		// An orphan's own edges go with it, which may orphan more nodes.
+		boolean dead[] = new boolean[mNodeTable.size()];
+		boolean any = false;
+		while(!mOrphans.isEmpty()) {
+			Node n = mOrphans.remove(mOrphans.size() - 1);
+			if(n.id < 0 || dead[n.id] || n.mInDegree > 0 || n.isTerminal()) continue;
+			dead[n.id] = true;
+			any = true;
+			
+			for(Node.Edge e : n.mEdges) {
+				mEdgeCount--;
+				if(--e.node.mInDegree == 0 && !e.node.isTerminal()) mOrphans.add(e.node);
+			}
+			n.mEdges.clear();
+		}
 		
-		// We've reached the end of this tuple.
-		if(mTupleIndex >= mCurrent.size()) {
+		if(any) removeNodes(dead);
+	}
+	
+	private static int bucket(int weight) {
+		if(weight < 64) return weight;
+		return 64 + (31 - Integer.numberOfLeadingZeros(weight)) - 6;
+	}
+	
+	/**
+	 * Drop the given nodes and renumber the rest, then rebuild everything
+	 * that depends on node IDs or on edges having only ever been added.
+	 * @param dead which nodes to drop, by ID
+	 */
+	private void removeNodes(boolean dead[]) {
+		int live = 0;
+		for(int i = 0; i < mNodeTable.size(); i++) {
+			Node n = mNodeTable.get(i);
+			if(dead[i]) {
+				if(n.data.pack() == -1) mWideNodes.remove(n.data);
+				n.id = -1;
+				continue;
+			}
 			
-			if(maxLength > 0 && mElements >= maxLength) mCurrent = mCurrent.nextTerminal();
-			else mCurrent = mCurrent.next();
+			n.id = live;
+			mNodeTable.set(live++, n);
+		}
+		mNodeTable.subList(live, mNodeTable.size()).clear();
+		mNodeCount = live;
+		
+		mPackedNodes.clear();
+		for(int i = 2; i < live; i++) {
+			Node n = mNodeTable.get(i);
+			long key = n.data.pack();
+			if(key != -1) mPackedNodes.put(key, i);
+		}
+		
+		for(Node n : mNodeTable) n.edgesRemoved();
+		mSweep = 0;
+		
+		// Removing edges can lengthen paths, which the lazy table can't cope with.
+		mTerminalDistances = null;
+		mDistancesStale = true;
+		computeTerminalDistances();
+	}
+	
+	/**
+	 * Get the shortest distance from every node to the trailer, indexed
+	 * by node ID. The table is rebuilt with one reverse breadth-first
+	 * search from the trailer whenever an edge has been added since the
+	 * last time it was asked for.
+	 * @return distances, with UNREACHABLE for nodes that never terminate
+	 */
+	protected int[] getTerminalDistances() {
+		int distances[] = mTerminalDistances;
+		if(mDistancesStale || mPathsRemoved || distances == null) distances = computeTerminalDistances();
+		return distances;
+	}
+	
+	/**
+	 * Check whether a node has any path to the trailer. Learning only ever
+	 * adds paths, so this trusts an out of date table for nodes it already
+	 * knows terminate, and for nodes newer than the table, unless edges
+	 * have expired since it was built. With no table at all it builds one.
+	 * @param n node to check
+	 * @return true if n can reach the trailer
+	 */
+	protected boolean canTerminate(Node n) {
+		int distances[] = mTerminalDistances;
+		if(mPathsRemoved || distances == null) distances = computeTerminalDistances();
+		if(n.id >= distances.length) return true;
+		if(distances[n.id] == UNREACHABLE && mDistancesStale) distances = computeTerminalDistances();
+		return distances[n.id] != UNREACHABLE;
+	}
+	
+	/**
+	 * Rebuild the distance table. Synchronized so that cursors sharing a
+	 * chain don't all rebuild it at once.
+	 */
+	private synchronized int[] computeTerminalDistances() {
+		if(!mDistancesStale && !mPathsRemoved && mTerminalDistances != null) return mTerminalDistances;
+		
+		int nodes = mNodeTable.size();
+		
+		// Lay the reversed edges out as one flat array, grouped by target. Expired edges don't count.
+		int offsets[] = new int[nodes + 1];
+		for(Node n : mNodeTable) {
+			for(Node.Edge e : n.mEdges) if(e.isLive()) offsets[e.node.id + 1]++;
+		}
+		for(int i = 0; i < nodes; i++) offsets[i + 1] += offsets[i];
+		
+		int sources[] = new int[offsets[nodes]];
+		int fill[] = Arrays.copyOf(offsets, nodes);
+		for(Node n : mNodeTable) {
+			for(Node.Edge e : n.mEdges) if(e.isLive()) sources[fill[e.node.id]++] = n.id;
+		}
+		
+		// Breadth-first from the trailer over the reversed edges.
+		int distances[] = new int[nodes];
+		Arrays.fill(distances, UNREACHABLE);
+		int queue[] = fill;
+		int head = 0, tail = 0;
+		
+		distances[mTrailer.id] = 0;
+		queue[tail++] = mTrailer.id;
+		
+		while(head < tail) {
+			int n = queue[head++];
+			for(int i = offsets[n]; i < offsets[n + 1]; i++) {
+				int source = sources[i];
+				if(distances[source] != UNREACHABLE) continue;
+				distances[source] = distances[n] + 1;
+				queue[tail++] = source;
+			}
+		}
+		
+		mTerminalDistances = distances;
+		mDistancesStale = false;
+		mPathsRemoved = false;
+		return distances;
+	}
+	
+	/**
+	 * Find the node holding a tuple without creating it.
+	 * @param ids dictionary IDs of the tuple
+	 * @param size how many of them are in use
+	 * @return the node, or null if there is none
+	 */
+	Node find(int ids[], int size) {
+		if(size > mTupleLength) return null;
+		
+		long key = PackedTuple.pack(ids, size, mTupleLength);
+		if(key != -1) {
+			int id = mPackedNodes.get(key);
+			return (id == LongIntHashMap.MISSING) ? null : mNodeTable.get(id);
+		}
+		
+		mProbe.reuse(ids, size);
+		return mWideNodes.get(mProbe);
+	}
+	
+	/**
+	 * This method is an alias to find a node if it
+	 * exists or create it if it doesn't. Only a newly
+	 * created node gets its own copy of the IDs.
+	 * @param ids dictionary IDs of the tuple
+	 * @param size how many of them are in use
+	 * @return the newly created node, or resolved node
+	 */
+	Node findOrCreate(int ids[], int size) {
+		if(size > mTupleLength) {
+			throw new IllegalArgumentException(
+					String.format("Invalid tuple length %d. This structure: %d", size, mTupleLength)
+					);
+		}
+		// Short tuples of small IDs resolve through the primitive index.
+		long key = PackedTuple.pack(ids, size, mTupleLength);
+		if(key != -1) {
+			int id = mPackedNodes.get(key);
+			if(id != LongIntHashMap.MISSING) return mNodeTable.get(id);
 			
-			mTupleIndex = 0;
+			Node n = makeNode(new Tuple(ids, size));
+			mPackedNodes.put(key, n.id);
+			return n;
 		}
 		
-		return returnValue;
+		// Probe with the reusable tuple before committing to a new one.
+		mProbe.reuse(ids, size);
+		Node n = mWideNodes.get(mProbe);
+		
+		if(n == null) {
+			Tuple data = new Tuple(ids, size);
+			n = makeNode(data);
+			mWideNodes.put(data, n);
+		}
+		
+		return n;
+	}
+	
+	private Node makeNode() {
+		return makeNode(null);
+	}
+	
+	private Node makeNode(Tuple data) {
+		Node n = new Node(data);
+		n.id = mNodeCount;
+		mNodeCount++;
+		mNodeTable.add(n);
+		return n;
 	}
 	
 	/**
-	 * Interpret an ArrayList of data as a possible phrase.
-	 * @param phrase to learn
+	 * Learns a phrase one piece of data at a time, for tokenizers that
+	 * would otherwise collect each phrase into a list just to hand it to
+	 * addPhrase(), which learns through one of these itself. Finish each
+	 * phrase before learning anything else: other learning can evict or
+	 * reclaim the node a half-built phrase is up to, and if it has, add()
+	 * and finish() throw IllegalStateException rather than build on it.
 	 */
-	public void addPhrase(ArrayList<T> phrase) {
-		if(phrase == null || phrase.size() == 0) return;
+	public class PhraseBuilder {
+		/** Where the phrase is up to, or null if it hasn't started */
+		private Node mCurrent = null;
+		
+		/** IDs of the tuple being filled, and the dictionary they came from */
+		private int mIds[] = new int[mTupleLength];
+		private int mFill = 0;
+		private TokenDictionary<T> mIdsFrom;
+		
+		/** Whether we journal our phrases, which addPhrase() does for us */
+		private final boolean mLog;
 		
-		// All phrases start at the header.
-		Node current = mHeader;
+		/** The phrase so far, kept only for the journal */
+		private ArrayList<T> mLogged = null;
 		
-		// Make temporary lists to help us resolve nodes.
-		Tuple tuple = new Tuple();
+		public PhraseBuilder() {
+			this(true);
+		}
+		
+		private PhraseBuilder(boolean log) {
+			mLog = log;
+		}
 		
-		// Find or create each node, add to its weight for the current node
-		// and iterate to the next node.
-		for(T data : phrase) {
-			int sz = tuple.size();
+		/**
+		 * Learn the next piece of data in the phrase.
+		 * @param data the data
+		 * @throws IllegalStateException if the chain has dropped where the phrase is up to
+		 */
+		public void add(T data) {
+			if(mCurrent == null) {
+				mCurrent = mHeader;
+				mIdsFrom = mDictionary;
+			}
+			else check();
 			
-			if(sz < mTupleLength) {
-				tuple.add(data);
+			if(mLog && mJournal != null) {
+				if(mLogged == null) mLogged = new ArrayList<T>();
+				mLogged.add(data);
 			}
-			else {
-				Node n = findOrCreate(tuple);
-				current.promote(n);
-				current = n;
-				tuple = new Tuple();
-				tuple.add(data);
+			
+			mIds[mFill++] = mDictionary.intern(data);
+			if(mFill == mTupleLength) step();
+		}
+		
+		/**
+		 * End the phrase, adding any incomplete tuple and the edge to the
+		 * trailer. Does nothing if nothing was added.
+		 * @throws IllegalStateException if the chain has dropped where the phrase is up to
+		 */
+		public void finish() {
+			if(mCurrent == null) return;
+			check();
+			if(mFill > 0) step();
+			mCurrent.promote(mTrailer);
+			mCurrent = null;
+			
+			if(mLogged != null && mLogged.size() > 0) {
+				if(mJournal != null) mJournal.append(mLogged);
+				mLogged.clear();
 			}
+			settle();
+		}
+		
+		private void step() {
+			Node n = findOrCreate(mIds, mFill);
+			mCurrent.promote(n);
+			mCurrent = n;
+			mFill = 0;
 		}
 		
-		// Add any incomplete tuples if needed.
-		if(tuple.size() > 0) {
-			Node n = findOrCreate(tuple);
-			current.promote(n);
-			current = n;
+		/**
+		 * Start a new phrase, dropping whatever an earlier one that never
+		 * finished left behind.
+		 */
+		private void start() {
+			mCurrent = null;
+			mFill = 0;
+			if(mLogged != null) mLogged.clear();
 		}
 		
-		// We've reached the end of the phrase, add an edge to the trailer node.
-		current.promote(mTrailer);
+		/**
+		 * Make sure the node we are up to is still in the chain, and the
+		 * IDs we have are still good. Reclaiming a node gives it an ID of
+		 * -1, clear() starts a new node table and compactDictionary()
+		 * renumbers every token.
+		 */
+		private void check() {
+			int id = mCurrent.id;
+			if(id >= 0 && id < mNodeTable.size() && mNodeTable.get(id) == mCurrent && mIdsFrom == mDictionary) return;
+			
+			start();
+			throw new IllegalStateException("The chain dropped the node this phrase was up to; finish phrases before learning anything else");
+		}
 	}
 	
 	/**
-	 * Interpret an array of data as a valid phrase.
-	 * @param phrase to interpret
+	 * An independent position in a gradual walk over the chain. Each
+	 * cursor carries its own node, tuple index, element count, looping
+	 * policy and random number generator, so any number of cursors can
+	 * walk one chain at the same time as long as nothing is learning.
+	 * Walking never changes the chain: on a windowed chain, edges the
+	 * learner hasn't caught up with yet are read by their unexpired weight.
 	 */
-	public void addPhrase(T phrase[]) {
-		if(phrase == null || phrase.length == 0) return;
+	public class Cursor {
+		/** Pointer to the current node */
+		private Node mCurrent;
 		
-		// All phrases start at the header.
-		Node current = mHeader;
+		/** Index for which data element is next in our tuple */
+		private int mTupleIndex = 0;
 		
-		// Empty tuple structure to work with
-		Tuple tuple = new Tuple();
+		/** Keeps up with how long our gradual chain is */
+		private int mElements = 0;
 		
-		// Find or create each node, add to its weight for the current node
-		// and iterate to the next node.
-		for(int i = 0; i < phrase.length; i++) {
-			T data = phrase[i];
-			int sz = tuple.size();
-			
-			if(sz < mTupleLength) {
-				tuple.add(data);
-			}
-			else {
-				Node n = findOrCreate(tuple);
-				current.promote(n);
-				current = n;
-				tuple = new Tuple();
-				tuple.add(data);
-			}
+		private final boolean mLoop;
+		private final int mMaxLength;
+		private final RandomSource mRNG;
+		
+		/**
+		 * @param loop whether to start a new phrase when one ends
+		 * @param maxLength elements after which to head for the trailer, or 0
+		 * @param rng this cursor's own source of randomness, or null to
+		 * use the chain's source for whichever thread is calling
+		 */
+		public Cursor(boolean loop, int maxLength, RandomSource rng) {
+			mLoop = loop;
+			mMaxLength = maxLength;
+			mRNG = rng;
 		}
 		
-		// Add any incomplete tuples if needed.
-		if(tuple.size() > 0) {
-			Node n = findOrCreate(tuple);
-			current.promote(n);
-			current = n;
+		/**
+		 * Start over from the top of the chain.
+		 */
+		public void reset() {
+			mCurrent = null;
+			mTupleIndex = 0;
+			mElements = 0;
 		}
 		
-		// Promote the trailer.
-		current.promote(mTrailer);
-	}
-	
-	/**
-	 * Use our graph to randomly generate a possibly valid phrase
-	 * from our data structure.
-	 * @return generated phrase
-	 */
-	public ArrayList<T> makePhrase() {
-		// Go ahead and choose our first node
-		Node current = mHeader.next();
+		/**
+		 * Get how many elements this cursor has handed out.
+		 * @return number of elements
+		 */
+		public int getElementCount() {
+			return mElements;
+		}
 		
-		// We will put our generated phrase in here.
-		ArrayList<T> phrase = new ArrayList<T>();
+		/**
+		 * Get the next element according to this cursor's policy.
+		 * @return next data element, or null if the phrase has ended
+		 */
+		public T next() {
+			return next(mLoop, mMaxLength);
+		}
 		
-		// As a safety, check for nulls
-		// Iterate til we get to the trailer
-		while(current != null && current != mTrailer) {
-			// Iterate over the data tuple in the node and add stuff to the phrase
-			// if it is non-null
-			for(int i = 0; i < current.data.size(); i++) {
-				T data = current.data.get(i);
+		/**
+		 * Get next element pointed to by this cursor.
+		 * This will also update the cursor to get ready
+		 * to serve the next data element.
+		 * @param loop if you would like to loop
+		 * @return data element at the current node tuple index
+		 */
+		T next(boolean loop, int maxLength) {
+			RandomSource rng = (mRNG != null) ? mRNG : mRandom.get();
+			
+			// In case mCurrent hasn't been initialized yet. Once we've started,
+			// null means a dead end, which ends the phrase like the trailer.
+			if(mCurrent == null && mElements > 0) {
+				if(!loop) return null;
+				mCurrent = mTrailer;
+			}
+			if(mCurrent == null || mCurrent == mHeader) mCurrent = mHeader.next(rng);
+			
+			// Handle behavior in case we're at the trailer at the start.
+			if(mCurrent == mTrailer) {
+				if(loop == true) {
+					
+					if(maxLength > 0 && mElements >= maxLength) mCurrent = mHeader.nextTerminal(rng);
+					else mCurrent = mHeader.next(rng);
+					
+					mTupleIndex = 0;
+				}
+				// No more data for non-loopers
+				else {
+					return null;
+				}
+			}
+			
+			// Nothing to walk at all.
+			if(mCurrent == null) return null;
+			
+			T returnValue = mCurrent.getData(mTupleIndex);
+			
+			mTupleIndex++;
+			mElements++;
+			
+			// We've reached the end of this tuple.
+			if(mTupleIndex >= mCurrent.size()) {
 				
-				if(data != null)
-					phrase.add(data);
+				if(maxLength > 0 && mElements >= maxLength) mCurrent = mCurrent.nextTerminal(rng);
+				else mCurrent = mCurrent.next(rng);
+				
+				mTupleIndex = 0;
 			}
-			current = current.next();
+			
+			return returnValue;
 		}
-		
-		// Out pops pure genius
-		return phrase;
 	}
 	
-	
 	/**
-	 * This method is an alias to find a node if it
-	 * exists or create it if it doesn't.
-	 * @param data to find a node for
-	 * @return the newly created node, or resolved node
+	 * A run of up to mTupleLength data elements, held as dictionary IDs.
+	 * A tuple is sealed the first time it is hashed, since that is when it
+	 * may have become a key; after that it can't be added to.
 	 */
-	private Node findOrCreate(Tuple data) {
-		if(data.size() > mTupleLength) {
-			throw new IllegalArgumentException(
-					String.format("Invalid tuple length %d. This structure: %d", data.size(), mTupleLength)
-					);
+	public class Tuple {
+		protected int mIds[] = new int[Math.max(1, mTupleLength)];
+		protected int mSize = 0;
+		
+		/** Cached hash code, valid once mSealed is set */
+		private int mHash;
+		private boolean mSealed = false;
+		
+		public Tuple() {
 		}
-		Node n = mNodes.get(data);
 		
-		if(n == null) {
-			n = makeNode(data);
-			mNodes.put(data, n);
+		/**
+		 * Make a tuple out of a copy of the given dictionary IDs.
+		 * @param ids dictionary IDs
+		 * @param size how many of them to use
+		 */
+		public Tuple(int ids[], int size) {
+			mIds = Arrays.copyOf(ids, Math.max(1, size));
+			mSize = size;
 		}
 		
-		return n;
-	}
-	
-	private Node makeNode() {
-		return makeNode(null);
-	}
-	
-	private Node makeNode(Tuple data) {
-		Node n = new Node(data);
-		n.id = mNodeCount;
-		mNodeCount++;
-		return n;
-	}
-	
-	public class Tuple {
-		protected ArrayList<T> mElements = new ArrayList<T>();
+		/**
+		 * Point this tuple at new IDs and unseal it. Only for probe tuples
+		 * that are never stored as keys.
+		 */
+		private void reuse(int ids[], int size) {
+			System.arraycopy(ids, 0, mIds, 0, size);
+			mSize = size;
+			mSealed = false;
+		}
 		
 		public void putAll(Collection <? extends T> datas) {
-			mElements.addAll(datas);
+			for(T data : datas) add(data);
 		}
 		
 		public void add(T data) {
-			mElements.add(data);
+			if(mSealed) throw new IllegalStateException("Can't add to a tuple once it has been hashed");
+			if(mSize == mIds.length) mIds = Arrays.copyOf(mIds, mSize * 2);
+			mIds[mSize++] = mDictionary.intern(data);
 		}
 		
 		public String toString() {
-			return mElements.toString();
+			StringBuilder sb = new StringBuilder("[");
+			for(int i = 0; i < mSize; i++) {
+				if(i > 0) sb.append(", ");
+				sb.append(get(i));
+			}
+			return sb.append(']').toString();
 		}
 		
 		public T get(int n) {
-			return mElements.get(n);
+			return mDictionary.get(getId(n));
+		}
+		
+		/**
+		 * Pack this tuple into a single long.
+		 * @return packed key, or -1 if this tuple is too wide to pack
+		 */
+		public long pack() {
+			return PackedTuple.pack(mIds, mSize, mTupleLength);
+		}
+		
+		/**
+		 * Get the dictionary ID of the data at the given position.
+		 * @param n position in the tuple
+		 * @return dictionary ID
+		 */
+		public int getId(int n) {
+			if(n < 0 || n >= mSize) throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + mSize);
+			return mIds[n];
 		}
 		
 		public int hashCode() {
-			if(mElements.size() == 0) return 0;
-			int hashCode = get(0).hashCode();
-			for(int i = 1; i < size(); i++) {
-				hashCode ^= get(i).hashCode();
+			if(mSealed) return mHash;
+			
+			// Positional polynomial so order matters and repeats don't cancel,
+			// then a murmur3 finalizer so every bit of the ID lands in the low bits.
+			int h = mSize;
+			for(int i = 0; i < mSize; i++) {
+				h = h * 0x01000193 + mIds[i];
 			}
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			h *= 0xC2B2AE35;
+			h ^= h >>> 16;
 			
-			return hashCode;
+			mHash = h;
+			mSealed = true;
+			return h;
 		}
 		
 		public boolean equals(Object o) {
-			try {
-				Tuple other = (Tuple) o;
-				if(other.size() != size()) return false;
-				
-				for(int i = 0; i < size(); i++) {
-					T mine = mElements.get(i);
-					T theirs = other.mElements.get(i);
-
-					if(mine.equals(theirs) == false) {
-						return false;
-					}
+			if(o == this) return true;
+			if(!(o instanceof MarkovChain.Tuple)) return false;
+			
+			@SuppressWarnings("unchecked")
+			Tuple other = (Tuple) o;
+			if(other.mSize != mSize || other.hashCode() != hashCode()) return false;
+			
+			for(int i = 0; i < mSize; i++) {
+				if(mIds[i] != other.mIds[i]) {
+					return false;
 				}
-				return true;
-			}
-			catch(Exception e) {
-				return false;
 			}
+			return true;
 		}
 		
 		public int size() {
-			return mElements.size();
+			return mSize;
 		}
 	}
 	
@@ -384,6 +1491,21 @@ public class MarkovChain<T> {
 		/** A list of edges to other nodes */
 		protected ArrayList<Edge> mEdges = new ArrayList<Edge>();
 		
+		/** Alias table built by freeze(), or null if the edges changed since */
+		protected AliasTable mAliasTable = null;
+		
+		/** Running sums of edge weights, kept once we have more than FENWICK_THRESHOLD edges */
+		protected FenwickTree mFenwick = null;
+		
+		/** Maps target node IDs to their slot in mEdges once we have more than EDGE_INDEX_THRESHOLD edges */
+		protected IntIntHashMap mEdgeIndex = null;
+		
+		/** How many edges point at this node. Nothing but the header is left at zero for long. */
+		protected int mInDegree = 0;
+		
+		/** The epoch our edges were last brought up to. See refresh(). */
+		protected int mRefreshed = mEpoch;
+		
 		/**
 		 * Blank constructor for data-less nodes (the header or trailer)
 		 */
@@ -407,51 +1529,15 @@ public class MarkovChain<T> {
 			return data.get(i);
 		}
 		
+		/**
+		 * Get the number of steps on the shortest path from this node
+		 * to the trailer.
+		 * @return path length, or Integer.MAX_VALUE if this node never terminates
+		 */
 		public int getTerminalPathLength() {
-			boolean visits[] = new boolean [mNodeCount];
-			return doGetTerminalPathLength(visits);
-		}
-		
-		private int doGetTerminalPathLength(boolean visits[]) {
 			// The path length is 0 if this is a terminal node.
 			if(isTerminal()) return 0;
-			
-			// We have visited the node we are currently in
-			visits[id] = true;
-			
-			// Make this variable exist outside the scope of following loop
-			Edge e = null;
-			int i = 0;
-			
-			// First let's iterate to find the first node we haven't visited
-			for(i = 0; i < mEdges.size(); i++) {
-				e = mEdges.get(i);
-				if(visits[e.node.id] == false) break;
-			}
-			
-			// If we never found one, this path does not terminate
-			if(visits[e.node.id] == true) {
-				visits[id] = false;
-				return Integer.MAX_VALUE;
-			}
-			
-			// Set the terminal path length of this first node as the minimum
-			int min = e.node.doGetTerminalPathLength(visits);
-			
-			for(i++; i < mEdges.size(); i++) {
-				e = mEdges.get(i);
-				
-				// Skip this guy if we have already visited
-				if(visits[e.node.id] == true) continue;
-				
-				// Decide which is smaller
-				int pathLength = e.node.doGetTerminalPathLength(visits);
-				min = Math.min(min, pathLength);
-			}
-			
-			// Set this guy to unvisited and return the path length
-			visits[id] = false;
-			return (min == Integer.MAX_VALUE) ? min : min + 1;
+			return getTerminalDistances()[id];
 		}
 		
 		public boolean isTerminal() {
@@ -473,17 +1559,177 @@ public class MarkovChain<T> {
 		 * @param n node to add more weight to
 		 */
 		public void promote(Node n) {
-			// Iterate through the edges and see if we can find that node.
-			for(Edge e : mEdges) {
-				if(e.node.equals(n)) {
-					e.weight++;
-					return;
-				}
+			promote(n, 1);
+		}
+		
+		/**
+		 * Add the given amount of weight to our edge to the given node,
+		 * creating the edge if we didn't already have one.
+		 * @param n node to add weight to
+		 * @param weight how much weight to add, which must be positive
+		 */
+		public void promote(Node n, int weight) {
+			// Whatever happens, our alias table is stale now.
+			mAliasTable = null;
+			refresh();
+			
+			// See if we already have an edge to that node.
+			int i = findEdge(n);
+			if(i >= 0) {
+				mEdges.get(i).add(weight);
+				if(mFenwick != null) mFenwick.add(i, weight);
+				return;
 			}
 			
 			// Elsewise, create an edge.
-			mEdges.add(new Edge(n));
+			Edge e = new Edge(n);
+			e.weight = weight;
+			mEdges.add(e);
+			n.mInDegree++;
 			MarkovChain.this.mEdgeCount++;
+			mDistancesStale = true;
+			
+			if(mEdgeIndex != null) mEdgeIndex.put(n.id, mEdges.size() - 1);
+			else if(mEdges.size() > EDGE_INDEX_THRESHOLD) buildEdgeIndex();
+			
+			// Hubs switch over to a Fenwick tree so sampling stays logarithmic.
+			if(mFenwick != null) mFenwick.append(weight);
+			else if(mEdges.size() > FENWICK_THRESHOLD) buildFenwick();
+		}
+		
+		/**
+		 * Take weight off our edge to the given node, dropping the edge
+		 * if that leaves it with none.
+		 * @param n node the edge points to
+		 * @param weight how much weight to take
+		 */
+		public void demote(Node n, int weight) {
+			demote(n, weight, -1);
+		}
+		
+		/**
+		 * Take weight learned in a particular epoch off our edge to the
+		 * given node, dropping the edge if that leaves it with none.
+		 * @param n node the edge points to
+		 * @param weight how much weight to take
+		 * @param epoch epoch to take it from, or -1 for the newest first
+		 */
+		public void demote(Node n, int weight, int epoch) {
+			mAliasTable = null;
+			refresh();
+			
+			int i = findEdge(n);
+			if(i < 0) return;
+			
+			Edge e = mEdges.get(i);
+			int removed = (epoch < 0) ? e.remove(weight) : e.remove(weight, epoch);
+			if(mFenwick != null) mFenwick.add(i, -removed);
+			if(e.weight > 0) return;
+			
+			removeEdge(i);
+			MarkovChain.this.mEdgeCount--;
+			mPathsRemoved = true;
+			if(--n.mInDegree == 0 && !n.isTerminal()) mOrphans.add(n);
+		}
+		
+		/**
+		 * Drop the edge in the given slot by moving our last edge into it,
+		 * which keeps the index and Fenwick tree valid without a rebuild.
+		 * @param i slot of the edge to drop, whose weight must already be zero
+		 */
+		protected void removeEdge(int i) {
+			int last = mEdges.size() - 1;
+			Edge e = mEdges.get(i);
+			Edge moved = mEdges.get(last);
+			
+			if(mFenwick != null) {
+				mFenwick.add(i, moved.weight - e.weight);
+				mFenwick.removeLast();
+			}
+			if(mEdgeIndex != null) {
+				mEdgeIndex.remove(e.node.id);
+				if(i != last) mEdgeIndex.put(moved.node.id, i);
+			}
+			
+			mEdges.set(i, moved);
+			mEdges.remove(last);
+		}
+		
+		/**
+		 * Bring our edges up to the chain's current epoch if they aren't
+		 * already, dropping any whose weight has all expired. Targets left
+		 * with nothing pointing at them are queued for reclaim().
+		 */
+		protected void refresh() {
+			if(mWindow == 0 || mRefreshed == mEpoch) return;
+			mRefreshed = mEpoch;
+			
+			int sz = mEdges.size();
+			int kept = 0;
+			boolean changed = false;
+			for(int i = 0; i < sz; i++) {
+				Edge e = mEdges.get(i);
+				int before = e.weight;
+				e.roll(mEpoch);
+				if(e.weight != before) changed = true;
+				
+				if(e.weight > 0) {
+					mEdges.set(kept++, e);
+					continue;
+				}
+				
+				MarkovChain.this.mEdgeCount--;
+				if(--e.node.mInDegree == 0 && !e.node.isTerminal()) mOrphans.add(e.node);
+			}
+			
+			if(!changed) return;
+			if(kept < sz) mEdges.subList(kept, sz).clear();
+			edgesRemoved();
+		}
+		
+		/**
+		 * Rebuild everything that assumes edges have only ever been added
+		 * or made heavier.
+		 */
+		protected void edgesRemoved() {
+			mAliasTable = null;
+			mEdgeIndex = null;
+			mFenwick = null;
+			if(mEdges.size() > EDGE_INDEX_THRESHOLD) buildEdgeIndex();
+			if(mEdges.size() > FENWICK_THRESHOLD) buildFenwick();
+		}
+		
+		/**
+		 * Find the slot of our edge to the given node.
+		 * @param n node the edge points to
+		 * @return index into mEdges, or -1 if we have no such edge
+		 */
+		protected int findEdge(Node n) {
+			if(mEdgeIndex != null) return mEdgeIndex.get(n.id);
+			
+			for(int i = 0; i < mEdges.size(); i++) {
+				if(mEdges.get(i).node == n) return i;
+			}
+			return -1;
+		}
+		
+		/**
+		 * Index our current edges by the ID of the node they point to.
+		 */
+		protected void buildEdgeIndex() {
+			int sz = mEdges.size();
+			mEdgeIndex = new IntIntHashMap(sz);
+			for(int i = 0; i < sz; i++) mEdgeIndex.put(mEdges.get(i).node.id, i);
+		}
+		
+		/**
+		 * Build the Fenwick tree over our current edge weights.
+		 */
+		protected void buildFenwick() {
+			int sz = mEdges.size();
+			int weights[] = new int[sz];
+			for(int i = 0; i < sz; i++) weights[i] = mEdges.get(i).weight;
+			mFenwick = new FenwickTree(weights, sz);
 		}
 		
 		/**
@@ -492,46 +1738,135 @@ public class MarkovChain<T> {
 		 * @return next node, or null if we could not choose a next node
 		 */
 		protected Node next() {
+			return next(mRandom.get());
+		}
+		
+		/**
+		 * Randomly choose which is the next node to go to.
+		 * @param rng source of randomness
+		 * @return next node, or null if we could not choose a next node
+		 */
+		protected Node next(RandomSource rng) {
+			if(isStale()) return nextLive(rng);
 			if(mEdges.size() == 0) return null;
-			Edge choice = chooseEdge(mEdges);
+			if(mAliasTable != null) return mEdges.get(mAliasTable.sample(rng)).node;
+			if(mFenwick != null) return mEdges.get(mFenwick.find(rng.nextInt(mFenwick.total()))).node;
+			Edge choice = chooseEdge(mEdges, rng);
 			return choice.node;
 		}
 		
+		/**
+		 * Check whether our edges are behind the chain's epoch, and so may
+		 * hold weight that has expired. Readers leave them that way; only
+		 * learning and settle() bring them up to date.
+		 */
+		protected boolean isStale() {
+			return mWindow > 0 && mRefreshed != mEpoch;
+		}
+		
+		/**
+		 * Choose the next node by the weight still in the window, without
+		 * touching our edges, for nodes that haven't been refreshed since the
+		 * epoch moved on. This is a scan, but only until the learner gets to us.
+		 * @param rng source of randomness
+		 * @return next node, or null if every edge has expired
+		 */
+		private Node nextLive(RandomSource rng) {
+			int sz = mEdges.size();
+			int total = 0;
+			for(int i = 0; i < sz; i++) total += mEdges.get(i).live();
+			if(total == 0) return null;
+			
+			int r = rng.nextInt(total);
+			for(int i = 0; i < sz; i++) {
+				Edge e = mEdges.get(i);
+				r -= e.live();
+				if(r < 0) return e.node;
+			}
+			
+			// In theory, this shouldn't happen, but we should want to know if it does.
+			throw new IllegalArgumentException("Something terrible happened.");
+		}
+		
+		/**
+		 * Build the alias table used by next(). Nodes with fewer than
+		 * two edges have nothing to choose between and don't get one.
+		 */
+		protected void buildAliasTable() {
+			int sz = mEdges.size();
+			if(sz < 2) {
+				mAliasTable = null;
+				return;
+			}
+			
+			int weights[] = new int[sz];
+			for(int i = 0; i < sz; i++) weights[i] = mEdges.get(i).weight;
+			mAliasTable = new AliasTable(weights, sz);
+		}
+		
+		/**
+		 * Randomly choose among the edges that lead to the trailer
+		 * the fastest, by weight.
+		 * @return next node, or null if no edge leads to the trailer
+		 */
 		protected Node nextTerminal() {
+			return nextTerminal(mRandom.get());
+		}
+		
+		/**
+		 * Randomly choose among the edges that lead to the trailer
+		 * the fastest, by weight.
+		 * @param rng source of randomness
+		 * @return next node, or null if no edge leads to the trailer
+		 */
+		protected Node nextTerminal(RandomSource rng) {
 			if(mEdges.size() == 0) return null;
 			
-			ArrayList<Edge> candidates = new ArrayList<Edge>();
-			Edge e = mEdges.get(0);
-			candidates.add(e);
-			int min = e.node.getTerminalPathLength();
+			int distances[] = getTerminalDistances();
+			int sz = mEdges.size();
+			boolean stale = isStale();
 			
-			for(int i = 1; i < mEdges.size(); i++) {
-				e = mEdges.get(i);
-				int pathLength = e.node.getTerminalPathLength();
-				if(pathLength == min) {
-					candidates.add(e);
+			// First pass: find the shortest distance and the weight of edges that achieve it.
+			int min = UNREACHABLE;
+			int total = 0;
+			for(int i = 0; i < sz; i++) {
+				Edge e = mEdges.get(i);
+				int w = stale ? e.live() : e.weight;
+				if(w == 0) continue;
+				
+				int d = distances[e.node.id];
+				if(d < min) {
+					min = d;
+					total = w;
 				}
-				else if(pathLength < min) {
-					candidates.clear();
-					candidates.add(e);
-					min = pathLength;
+				else if(d == min) {
+					total += w;
 				}
 			}
 			
-			if(min == Integer.MAX_VALUE) return null;
-			Edge choice = chooseEdge(candidates);
-//			System.out.printf("Terminal path: %d\n", min);
-//			System.out.printf("%s --> %s\n", data.toString(), choice.node.data.toString());
-			return choice.node;
+			if(min == UNREACHABLE) return null;
+			
+			// Second pass: find where our random number landed among the candidates.
+			int r = rng.nextInt(total);
+			for(int i = 0; i < sz; i++) {
+				Edge e = mEdges.get(i);
+				if(distances[e.node.id] != min) continue;
+				
+				r -= stale ? e.live() : e.weight;
+				if(r < 0) return e.node;
+			}
+			
+			// In theory, this shouldn't happen, but we should want to know if it does.
+			throw new IllegalArgumentException("Something terrible happened.");
 		}
 		
-		private Edge chooseEdge(ArrayList<Edge> edges) {
+		private Edge chooseEdge(ArrayList<Edge> edges, RandomSource rng) {
 			// First things first: count up the entirety of all the weight.
 			int totalScore = 0;
 			for(int i = 0; i < edges.size(); i++) totalScore += edges.get(i).weight;
 			
 			// Choose a random number that is less than or equal to that weight
-			int r = RNG.nextInt(totalScore);
+			int r = rng.nextInt(totalScore);
 			
 			// This variable contains how much weight we have "seen" in our loop.
 			int current = 0;
@@ -567,6 +1902,132 @@ public class MarkovChain<T> {
 			
 			Node node;
 			int weight = 1;
+			
+			/** Weight learned in each epoch of the window, by epoch modulo the window. Null while it's all from one epoch. */
+			int counts[] = null;
+			
+			/** The newest epoch our weight counts */
+			int epoch = mEpoch;
+			
+			/**
+			 * Add weight learned in the current epoch.
+			 * @param w weight to add
+			 */
+			void add(int w) {
+				if(mWindow > 0) {
+					roll(mEpoch);
+					
+					// A second epoch's worth of weight needs the ring to tell them apart.
+					if(counts == null && weight > 0 && epoch != mEpoch) {
+						counts = new int[mWindow];
+						counts[epoch % mWindow] = weight;
+					}
+					if(counts != null) counts[mEpoch % mWindow] += w;
+					epoch = mEpoch;
+				}
+				weight += w;
+			}
+			
+			/**
+			 * Take weight off, from the newest epochs first. The edge must
+			 * already be rolled up to the current epoch.
+			 * @param w weight to take
+			 * @return how much was taken, which is less than w if we had less
+			 */
+			int remove(int w) {
+				w = Math.min(w, weight);
+				weight -= w;
+				
+				if(counts != null) {
+					int left = w;
+					for(int k = 0; k < mWindow && left > 0; k++) {
+						int slot = Math.floorMod(epoch - k, mWindow);
+						int taken = Math.min(left, counts[slot]);
+						counts[slot] -= taken;
+						left -= taken;
+					}
+				}
+				return w;
+			}
+			
+			/**
+			 * Take weight learned in one epoch off. The edge must already be
+			 * rolled up to the current epoch.
+			 * @param w weight to take
+			 * @param e epoch to take it from
+			 * @return how much was taken, which is less than w if that epoch had less
+			 */
+			int remove(int w, int e) {
+				w = Math.min(w, weight(e));
+				weight -= w;
+				if(counts != null) counts[e % mWindow] -= w;
+				return w;
+			}
+			
+			/**
+			 * How much of our weight was learned in the given epoch. The edge
+			 * must already be rolled up to the current epoch.
+			 * @param e an epoch, or -1 for all of it
+			 * @return its weight
+			 */
+			int weight(int e) {
+				if(e < 0 || mWindow == 0) return weight;
+				if(e > epoch || e <= epoch - mWindow) return 0;
+				if(counts == null) return (e == epoch) ? weight : 0;
+				return counts[e % mWindow];
+			}
+			
+			/**
+			 * Expire whatever was learned in epochs that have left the window.
+			 * @param current the chain's current epoch
+			 */
+			void roll(int current) {
+				int elapsed = current - epoch;
+				if(elapsed <= 0) return;
+				
+				if(elapsed >= mWindow) {
+					weight = 0;
+					counts = null;
+					epoch = current;
+					return;
+				}
+				
+				// With no ring, our weight is all from one epoch that is still in the window.
+				if(counts == null) return;
+				
+				for(int k = 1; k <= elapsed; k++) {
+					int slot = (epoch + k) % mWindow;
+					weight -= counts[slot];
+					counts[slot] = 0;
+				}
+				epoch = current;
+			}
+			
+			/**
+			 * Check whether any of our weight is still in the window,
+			 * without rolling anything.
+			 * @return true if this edge hasn't expired
+			 */
+			boolean isLive() {
+				return live() > 0;
+			}
+			
+			/**
+			 * How much of our weight is still in the window, without rolling
+			 * anything, so readers can ask while we're behind the epoch.
+			 * @return live weight
+			 */
+			int live() {
+				if(mWindow == 0) return weight;
+				
+				int elapsed = mEpoch - epoch;
+				if(elapsed <= 0 || (counts == null && elapsed < mWindow)) return weight;
+				if(elapsed >= mWindow) return 0;
+				
+				int live = weight;
+				for(int k = 1; k <= elapsed; k++) live -= counts[(epoch + k) % mWindow];
+				return live;
+			}
 		}
 		
 	}
@@ -576,17 +2037,19 @@ public class MarkovChain<T> {
 	}
 	
 	public void exportXML(OutputStream os) {
-		exportXML(new PrintStream(os));
+		exportXML(new PrintStream(os, false, StandardCharsets.UTF_8));
 	}
 	
+	/**
+	 * Write the chain as XML. The dump declares itself UTF-8, so the stream
+	 * ought to encode that way.
+	 */
 	public void exportXML(PrintStream os) {
+		os.println("<?xml version='1.0' encoding='UTF-8'?>");
 		os.println("<chain>");
 		printNode("header", os, mHeader);
 		
-		Iterator<Node> it = mNodes.values().iterator();
-		
-		while(it.hasNext()) {
-			Node n = it.next();
+		for(Node n : getNodes()) {
 			printNode("node", os, n);
 		}
 		
@@ -599,7 +2062,7 @@ public class MarkovChain<T> {
 	private void printNode(String name, PrintStream os, Node n) {
 		os.printf("\t<%s id='%d'>\n", name, n.id);
 		if(n.data != null) {
-			os.printf("\t%s\n",n.data.toString());
+			os.printf("\t%s\n", ChainXml.escape(n.data.toString()));
 		}
 		printEdges(os,n);
 		os.printf("\t</%s>\n", name);
@@ -0,0 +1,69 @@
+package org.oep.markov;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What every chain that learns phrases and makes new ones can do, however
+ * it keeps its graph. Code written against this works the same over a
+ * MarkovChain, a CompactMarkovChain or a ConcurrentMarkovChain.
+ * @author OEP
+ *
+ * @param <T> the type of data you would like to generate phrases for
+ */
+public interface MarkovModel<T> {
+	/**
+	 * Get the dictionary this chain interns its data with.
+	 * @return the dictionary
+	 */
+	TokenDictionary<T> getDictionary();
+
+	/**
+	 * Replace the root that every thread's source of randomness is split from.
+	 * @param random the new root
+	 */
+	void setRandomSource(RandomSource random);
+
+	/**
+	 * Seed the chain so that generation is reproducible.
+	 * @param seed the seed
+	 */
+	void setSeed(long seed);
+
+	/**
+	 * Get the number of edges in this graph.
+	 * @return number of edges
+	 */
+	int getEdgeCount();
+
+	/**
+	 * Get the number of nodes in this graph, not counting header and trailer.
+	 * @return number of nodes
+	 */
+	int getNodeCount();
+
+	/**
+	 * Interpret a list of data as a possible phrase.
+	 * @param phrase to learn
+	 */
+	void addPhrase(List<T> phrase);
+
+	/**
+	 * Interpret an array of data as a valid phrase.
+	 * @param phrase to interpret
+	 */
+	void addPhrase(T phrase[]);
+
+	/**
+	 * Use our graph to randomly generate a possibly valid phrase.
+	 * @return generated phrase
+	 */
+	ArrayList<T> makePhrase();
+
+	/**
+	 * Generate a phrase drawing from the given source of randomness.
+	 * @param rng source of randomness
+	 * @return generated phrase
+	 */
+	ArrayList<T> makePhrase(RandomSource rng);
+}
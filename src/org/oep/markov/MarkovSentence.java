@@ -1,6 +1,5 @@
 package org.oep.markov;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -8,7 +7,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import org.oep.markov.MarkovChain.Node.Edge;
 
@@ -19,106 +35,478 @@ import org.oep.markov.MarkovChain.Node.Edge;
  *
  */
 public class MarkovSentence extends MarkovChain<String> {
-	/** Buffer to use when parsing our input source */
+	/** Buffer for the phrase forgetSentence() is parsing, which has to be whole before it's removed */
 	private ArrayList<String> mPhraseBuffer = new ArrayList<String>();
 	
+	/** Learns the phrase parseSentence() is parsing as it goes */
+	private PhraseBuilder mBuilder = new PhraseBuilder();
+	
+	/** How many words the phrase being parsed has so far */
+	private int mWords = 0;
+	
+	/** The word being parsed */
+	private StringBuilder mToken = new StringBuilder();
+	
+	/** Reused for reading streams, channels and readers */
+	private ByteBuffer mBytes = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private CharBuffer mChars = CharBuffer.allocate(READ_BUFFER_SIZE);
+	
+	/** Reused for decoding streams and channels. Malformed input becomes U+FFFD, a separator. */
+	private CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	
+	/** A high surrogate whose other half is still to be read, or 0 */
+	private char mPendingHigh = 0;
+	
+	/** What each ASCII character does to the tokenizer, or null until it's next needed */
+	private byte mClasses[] = null;
+	
+	/** Whether non-ASCII letters and digits count as token characters. See classes(). */
+	private boolean mLetters, mDigits;
+	
 	private String mTokenChars = null;
 	private String mTerminateChars = null;
 	
+	/** Set while forgetSentence() is running, so phrases get removed instead of added */
+	private boolean mForgetting = false;
+	
+	/** Epoch forgetSentence() is removing from, or -1 for the newest first */
+	private int mForgetEpoch = -1;
+	
+	/** Characters that end the word being parsed */
+	private static final byte SEPARATOR = 0;
+	
+	/** Characters that make up words */
+	private static final byte TOKEN = 1;
+	
+	/** Characters that end the phrase being parsed, if it has started */
+	private static final byte TERMINATOR = 2;
+	
+	private static final int READ_BUFFER_SIZE = 8192;
+	
+	/** Most of a file parseFile() maps at once */
+	private static final long MAP_SIZE = 1L << 30;
+	
 	public MarkovSentence(int tupleLength) {
 		super(tupleLength);
 	}
 	
+	public MarkovSentence(int tupleLength, TokenDictionary<String> dictionary) {
+		super(tupleLength, dictionary);
+	}
+	
 	public void setTokenChars(String chars) {
 		mTokenChars = chars;
+		mClasses = null;
 	}
 	
 	public void setTerminateChars(String chars) {
 		mTerminateChars = chars;
+		mClasses = null;
 	}
 	
 	/**
-	 * Converts a String to a ByteArrayInputStream and parses.
+	 * Parse a String or any other sequence of characters.
 	 * @param s String object to parse.
 	 */
-	public void parseSentence(String s) {
-		byte buf[] = s.getBytes();
-		parseSentence(new ByteArrayInputStream(buf));
+	public void parseSentence(CharSequence s) {
+		classes();
+		scan(s, 0, s.length());
+		endPhrase();
 	}
 	
 	/**
-	 * Stream-safe method to parse an InputStream.
+	 * Unlearn a String learned through parseSentence(). It is tokenized
+	 * the same way, and each phrase in it is taken back out with
+	 * removePhrase().
+	 * @param s String object to unlearn.
+	 */
+	public void forgetSentence(CharSequence s) {
+		forgetSentence(s, -1);
+	}
+	
+	/**
+	 * Unlearn a String learned through parseSentence() in a particular
+	 * epoch, leaving the weight learned in other epochs alone.
+	 * @param s String object to unlearn.
+	 * @param epoch epoch it was learned in, or -1 for the newest first
+	 * @see MarkovChain#removePhrase(java.util.List, int)
+	 */
+	public void forgetSentence(CharSequence s, int epoch) {
+		mForgetting = true;
+		mForgetEpoch = epoch;
+		try {
+			parseSentence(s);
+		}
+		finally {
+			mForgetting = false;
+			mForgetEpoch = -1;
+		}
+	}
+	
+	/**
+	 * Stream-safe method to parse an InputStream of UTF-8. Reads until the
+	 * end of the stream, then closes it.
 	 * @param is InputStream to parse
 	 */
 	public void parseSentence(InputStream is) {
 		if(is == null) return;
 		
-		int read;
 		try {
-			// We will push our tokens into this thingy.
-			StringBuffer sb = new StringBuffer();
+			decode(Channels.newChannel(is));
+		} catch (IOException e) {
+			// Intentionally blank. We learn whatever we got.
+		}
+		finally {
+			endPhrase();
+			try { if(is != null) is.close();	}
+			catch (IOException e) { /* intentionally blank*/ }
+		}
+	}
+	
+	/**
+	 * Parse a channel of UTF-8 until it runs out. The channel is left open.
+	 * @param channel channel to parse
+	 * @throws IOException if reading fails, after learning what was read
+	 */
+	public void parseSentence(ReadableByteChannel channel) throws IOException {
+		try {
+			decode(channel);
+		}
+		finally {
+			endPhrase();
+		}
+	}
+	
+	/**
+	 * Parse characters from a reader until it runs out. The reader is left open.
+	 * @param reader reader to parse
+	 * @throws IOException if reading fails, after learning what was read
+	 */
+	public void parseSentence(Reader reader) throws IOException {
+		classes();
+		try {
+			int read;
+			char buf[] = mChars.array();
+			while((read = reader.read(buf, 0, buf.length)) >= 0) {
+				mChars.clear();
+				mChars.limit(read);
+				scan(mChars, 0, read);
+			}
+		}
+		finally {
+			endPhrase();
+		}
+	}
+	
+	/**
+	 * Decode UTF-8 from a channel in bulk, feeding the tokenizer a buffer
+	 * at a time.
+	 */
+	private void decode(ReadableByteChannel channel) throws IOException {
+		classes();
+		mDecoder.reset();
+		mBytes.clear();
+		
+		boolean eof = false;
+		while(!eof) {
+			eof = channel.read(mBytes) < 0;
+			mBytes.flip();
+			decode(mBytes, eof);
 			
-			// Check and see if we can read anything.
-			while((read = is.available()) != 0) {
-				
-				// Allocate a buffer to read into
-				byte buf[] = new byte[read];
-				
-				// Read bytes and 
-				int actual = is.read(buf, 0, read);
-				
-				
-				// Loop through the bytes we just read.
-				for(int i = 0; i < actual; i++) {
-					
-					// If it is whitespace, end the token that we've been making and push it into the
-					// phrase buffer.
-					if(Character.isWhitespace((char)buf[i])) {
-						if(sb.length() > 0) {
-							pushWord(sb.toString());
-							sb = new StringBuffer();
-						}
-					}
-					// If it is a printable character, push it into our token buffer.
-					else if(isEmpty(mTokenChars) && 32 <= buf[i] && buf[i] < 127) {
-						sb.append((char)buf[i]);
-					}
-					else if(!isEmpty(mTokenChars) && mTokenChars.indexOf(buf[i]) >= 0) {
-						sb.append((char) buf[i]);
+			// Whatever is left is the start of a character the next read finishes.
+			mBytes.compact();
+		}
+		flushDecoder();
+	}
+	
+	/**
+	 * Decode and scan as much of a buffer as makes whole characters, or
+	 * all of it if nothing follows.
+	 */
+	private void decode(ByteBuffer bytes, boolean eof) {
+		CoderResult result;
+		do {
+			mChars.clear();
+			result = mDecoder.decode(bytes, mChars, eof);
+			mChars.flip();
+			scan(mChars, 0, mChars.length());
+		} while(result.isOverflow());
+	}
+	
+	private void flushDecoder() {
+		CoderResult result;
+		do {
+			mChars.clear();
+			result = mDecoder.flush(mChars);
+			mChars.flip();
+			scan(mChars, 0, mChars.length());
+		} while(result.isOverflow());
+	}
+	
+	/**
+	 * Parse a UTF-8 file on several cores. The file is memory-mapped and
+	 * split into one segment per thread, each ending just after a
+	 * terminate character that is followed by whitespace. Each segment is
+	 * parsed into its own chain sharing our dictionary, with this chain
+	 * taking the first, and the rest are merged in at the end. Without
+	 * such a place to split, the file is parsed as one segment.
+	 * <p>
+	 * Phrases never cross a split, so the result is what parseSentence()
+	 * would have learned from the whole file, except where a split's
+	 * terminator came before any complete word of its phrase, which
+	 * parseSentence() treats as a separator. Under a budget, each segment's
+	 * chain evicts within its share of it before being merged.
+	 * @param file the file to parse
+	 * @param parallelism how many threads to parse with
+	 * @throws IOException if the file can't be read
+	 */
+	public void parseFile(Path file, int parallelism) throws IOException {
+		classes();
+		
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			final long splits[] = split(channel, Math.max(1, parallelism));
+			final int segments = splits.length - 1;
+			if(segments == 1) {
+				parseMapped(channel, 0, splits[1]);
+				return;
+			}
+			
+			// Shards log to our journal, which takes appends from any thread.
+			final MarkovSentence shards[] = new MarkovSentence[segments];
+			shards[0] = this;
+			for(int i = 1; i < segments; i++) {
+				shards[i] = new MarkovSentence(mTupleLength, mDictionary);
+				shards[i].setTokenChars(mTokenChars);
+				shards[i].setTerminateChars(mTerminateChars);
+				shards[i].mJournal = mJournal;
+				configureShard(shards[i], segments);
+			}
+			
+			ForkJoinPool pool = new ForkJoinPool(segments);
+			try {
+				pool.submit(() -> IntStream.range(0, segments).parallel().forEach(i -> {
+					try {
+						shards[i].parseMapped(channel, splits[i], splits[i + 1]);
 					}
-					else if(!isEmpty(mTerminateChars) && mTerminateChars.indexOf(buf[i]) >= 0
-							&& mPhraseBuffer.size() > 0) {
-						sb.append((char)buf[i]);
-						pushWord(sb.toString());
-//						System.out.printf("Pushing '%s' do to punc. mark '%c'\n", sb.toString(), buf[i]);
-						
-						sb = new StringBuffer();
-						flushBuffer();
+					catch(IOException e) {
+						throw new UncheckedIOException(e);
 					}
-					// If it is nonprintable, end the token and push it.
-					else  {
-						if(sb.length() > 0) {
-							pushWord(sb.toString());
-							sb = new StringBuffer();
-						}
+				})).join();
+			}
+			catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			finally {
+				pool.shutdown();
+			}
+			
+			for(int i = 1; i < segments; i++) merge(shards[i]);
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Find where to split a file into about the given number of segments.
+	 * Each split goes after the first terminator followed by whitespace at
+	 * or past its even share of the file. Terminators are ASCII here, which
+	 * never turns up inside a UTF-8 sequence.
+	 * @return offsets of the segments, starting with 0 and ending with the file size
+	 */
+	private long[] split(FileChannel channel, int parallelism) throws IOException {
+		long size = channel.size();
+		long splits[] = new long[parallelism + 1];
+		int count = 0;
+		splits[count++] = 0;
+		
+		ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		for(int k = 1; k < parallelism; k++) {
+			long position = Math.max(size / parallelism * k, splits[count - 1]);
+			long found = -1;
+			
+			// Read a little past each block so a terminator's whitespace can be seen.
+			while(found < 0 && position < size) {
+				buf.clear();
+				int n = channel.read(buf, position);
+				if(n <= 1) break;
+				
+				for(int i = 0; i + 1 < n; i++) {
+					int b = buf.get(i) & 0xFF;
+					if(b < 128 && mClasses[b] == TERMINATOR && Character.isWhitespace((char) buf.get(i + 1))) {
+						found = position + i + 1;
+						break;
 					}
 				}
+				position += n - 1;
 			}
 			
-			// Before we flush, make sure there's nothing left in the buffer
-			if(sb.length() > 0) {
-				pushWord(sb.toString());
+			if(found < 0) break;
+			if(found > splits[count - 1]) splits[count++] = found;
+		}
+		
+		splits[count++] = size;
+		return Arrays.copyOf(splits, count);
+	}
+	
+	/**
+	 * Parse part of a mapped file, a window at a time so that segments
+	 * past 2GB still map.
+	 */
+	private void parseMapped(FileChannel channel, long start, long end) throws IOException {
+		classes();
+		mDecoder.reset();
+		
+		try {
+			long position = start;
+			boolean eof = false;
+			while(!eof) {
+				long size = Math.min(end - position, MAP_SIZE);
+				eof = (position + size == end);
+				
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+				decode(window, eof);
+				position += window.position();
 			}
-			
-			// Add the sentence to our MarkovChain
-			flushBuffer();
-		} catch (IOException e) {
-			// Intentionally blank.
+			flushDecoder();
 		}
 		finally {
-			try { if(is != null) is.close();	}
-			catch (IOException e) { /* intentionally blank*/ }
+			endPhrase();
+		}
+	}
+	
+	/**
+	 * Feed characters through the tokenizer. Whitespace and anything we
+	 * don't recognize end a word, token characters (or any printable
+	 * character, if we have none) make them up, and terminate characters
+	 * end the phrase once it has at least one word. ASCII is classified by
+	 * table; everything else goes by code point.
+	 */
+	private void scan(CharSequence cs, int start, int end) {
+		byte classes[] = mClasses;
+		
+		for(int i = start; i < end; i++) {
+			int c = cs.charAt(i);
+			
+			// Put surrogate pairs back together, even when a buffer splits them.
+			if(mPendingHigh != 0) {
+				if(Character.isLowSurrogate((char) c)) c = Character.toCodePoint(mPendingHigh, (char) c);
+				else endToken();
+				mPendingHigh = 0;
+			}
+			else if(Character.isHighSurrogate((char) c)) {
+				if(i + 1 == end) {
+					mPendingHigh = (char) c;
+					continue;
+				}
+				if(Character.isLowSurrogate(cs.charAt(i + 1))) c = Character.toCodePoint((char) c, cs.charAt(++i));
+			}
+			
+			byte type = (c < 128) ? classes[c] : classify(c);
+			if(type == TOKEN) {
+				append(c);
+			}
+			else if(type == TERMINATOR && mWords > 0) {
+				append(c);
+				endToken();
+				endPhrase();
+			}
+			else {
+				endToken();
+			}
+		}
+	}
+	
+	/**
+	 * Add a character to the word being parsed, lowercased. ASCII takes a
+	 * single step.
+	 */
+	private void append(int c) {
+		if(c < 128) mToken.append((char) (('A' <= c && c <= 'Z') ? c + ('a' - 'A') : c));
+		else mToken.appendCodePoint(Character.toLowerCase(c));
+	}
+	
+	/**
+	 * Classify a non-ASCII code point. Characters named in our sets count
+	 * as they are named. Beyond those, letters and the marks on them are
+	 * token characters if our token characters include ASCII letters, and
+	 * digits if they include ASCII digits. With no token characters at all,
+	 * anything printable is one, just as with ASCII.
+	 */
+	private byte classify(int c) {
+		if(Character.isWhitespace(c) || Character.isSpaceChar(c) || c == 0xFFFD) return SEPARATOR;
+		
+		if(isEmpty(mTokenChars)) {
+			if(isPrintable(c)) return TOKEN;
+		}
+		else if(mTokenChars.indexOf(c) >= 0) {
+			return TOKEN;
+		}
+		else if(mLetters && (Character.isLetter(c) || isMark(c))) {
+			return TOKEN;
+		}
+		else if(mDigits && Character.isDigit(c)) {
+			return TOKEN;
+		}
+		
+		if(!isEmpty(mTerminateChars) && mTerminateChars.indexOf(c) >= 0) return TERMINATOR;
+		return SEPARATOR;
+	}
+	
+	private static boolean isMark(int c) {
+		int type = Character.getType(c);
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+				|| type == Character.ENCLOSING_MARK;
+	}
+	
+	private static boolean isPrintable(int c) {
+		switch(Character.getType(c)) {
+		case Character.UNASSIGNED:
+		case Character.CONTROL:
+		case Character.FORMAT:
+		case Character.PRIVATE_USE:
+		case Character.SURROGATE:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	/**
+	 * Build the tokenizer's ASCII table out of our character sets, in the
+	 * order scan() has always tested them: whitespace, then token
+	 * characters, then terminate characters. Also works out how classify()
+	 * treats everything else.
+	 */
+	private byte[] classes() {
+		if(mClasses != null) return mClasses;
+		
+		byte classes[] = new byte[128];
+		for(int c = 0; c < 128; c++) {
+			if(Character.isWhitespace((char) c)) {
+				classes[c] = SEPARATOR;
+			}
+			else if(isEmpty(mTokenChars) ? (32 <= c && c < 127) : mTokenChars.indexOf(c) >= 0) {
+				classes[c] = TOKEN;
+			}
+			else if(!isEmpty(mTerminateChars) && mTerminateChars.indexOf(c) >= 0) {
+				classes[c] = TERMINATOR;
+			}
+		}
+		
+		mLetters = false;
+		mDigits = false;
+		for(int c = 0; c < 128; c++) {
+			if(classes[c] != TOKEN) continue;
+			if(Character.isLetter(c)) mLetters = true;
+			if(Character.isDigit(c)) mDigits = true;
 		}
+		
+		mClasses = classes;
+		return classes;
 	}
 	
 	private boolean isEmpty(String s) {
@@ -131,8 +519,24 @@ public class MarkovSentence extends MarkovChain<String> {
 	 * @return String of our Markov phrase
 	 */
 	public String makeSentence() {
-		// Get our phrase as an unwieldy ArrayList
-		ArrayList<String> phrase = makePhrase();
+		return makeSentence(makePhrase());
+	}
+	
+	/**
+	 * Make a sentence drawing from the given source of randomness.
+	 * @param rng source of randomness
+	 * @return String of our Markov phrase
+	 */
+	public String makeSentence(RandomSource rng) {
+		return makeSentence(makePhrase(rng));
+	}
+	
+	/**
+	 * Join a generated phrase into a capitalized sentence.
+	 * @param phrase words of the sentence
+	 * @return String of our Markov phrase
+	 */
+	public static String makeSentence(ArrayList<String> phrase) {
 		
 		// Get our StringBuffer ready and calculate the size beforehand BECAUSE IT'S SO MUCH FASTER.
 		StringBuffer sb = new StringBuffer();
@@ -158,18 +562,17 @@ public class MarkovSentence extends MarkovChain<String> {
 	public void export(String filename) throws FileNotFoundException {
 		File outfile = new File(filename);
 		OutputStream os = new FileOutputStream(outfile);
-		PrintStream p = new PrintStream(os);
+		PrintStream p = new PrintStream(os, false, StandardCharsets.UTF_8);
 		
+		p.append("<?xml version='1.0' encoding='UTF-8'?>\n");
 		p.append("<markov>\n");
 		
 		p.append("\t<header>\n");
 		writeEdges(p,mHeader);
 		p.append("\t</header>\n");
 
-		ArrayList<Node> nodes = new ArrayList<Node>(mNodes.values());
-		
-		for(Node n : nodes) {
-			p.append(String.format("\t<node name='%s'>\n", n.data));
+		for(Node n : getNodes()) {
+			p.append(String.format("\t<node name='%s'>\n", ChainXml.escape(n.data.toString())));
 			writeEdges(p,n);
 			p.append("\t</node>\n");
 		}
@@ -186,7 +589,7 @@ public class MarkovSentence extends MarkovChain<String> {
 			Node.Edge e = n.mEdges.get(i);
 			
 			if(e.node.data != null)
-				p.append(String.format("\t\t<edge name='%s' />\n", e.node.data));
+				p.append(String.format("\t\t<edge name='%s' />\n", ChainXml.escape(e.node.data.toString())));
 			else {
 				p.append("\t\t<edge trailer='true' />\n");
 			}
@@ -194,22 +597,35 @@ public class MarkovSentence extends MarkovChain<String> {
 	}
 	
 	/**
-	 * Alias method to help us flush the buffer into the Markov engine.
+	 * Alias method to push the word we've been building, if any.
 	 */
-	private void flushBuffer() {
-		if(mPhraseBuffer.size() == 0) return;
-//		System.out.println("Adding: " + mPhraseBuffer.toString());
-		this.addPhrase(mPhraseBuffer);
-		mPhraseBuffer.clear();
+	private void endToken() {
+		if(mToken.length() == 0) return;
+		
+		String word = mToken.toString();
+		mToken.setLength(0);
+		
+		if(mForgetting) mPhraseBuffer.add(word);
+		else mBuilder.add(word);
+		mWords++;
 	}
 	
 	/**
-	 * Alias method to add a word to the phrase buffer.
-	 * @param word the word to add
+	 * Alias method to finish the phrase in the Markov engine.
 	 */
-	private void pushWord(String word) {
-		if(word == null || word.length() == 0) return;
-		mPhraseBuffer.add(word.toLowerCase());
+	private void endPhrase() {
+		mPendingHigh = 0;
+		endToken();
+		if(mWords == 0) return;
+		
+		if(mForgetting) {
+			this.removePhrase(mPhraseBuffer, mForgetEpoch);
+			mPhraseBuffer.clear();
+		}
+		else {
+			mBuilder.finish();
+		}
+		mWords = 0;
 	}
 	
 	
@@ -0,0 +1,238 @@
+package org.oep.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A frozen, read-only copy of a chain, laid out as flat arrays: each
+ * node's edges sit in one contiguous run of targets and weights, found
+ * through an offsets array, with an alias table over every run so each
+ * step of generation is constant time. Nothing in a snapshot ever
+ * changes, so any number of threads can generate from one without
+ * locking while the chain it came from goes on learning. Like the chain,
+ * a snapshot knows each node's distance to the trailer, so generation
+ * never wanders into a loop it can't leave.
+ * @author OEP
+ *
+ * @param <T> the type of data the chain generates phrases for
+ */
+public class MarkovSnapshot<T> {
+	/** ID of the node that marks the beginning of a phrase */
+	public static final int HEADER = 0;
+
+	/** ID of the node that marks the end of a phrase */
+	public static final int TRAILER = 1;
+
+	protected final TokenDictionary<T> mDictionary;
+	protected final int mTupleLength;
+
+	/** Token IDs of each node's tuple, mTupleLength per node, padded with -1 */
+	protected final int mNodeTokens[];
+
+	/** Node n's edges are slots mOffsets[n] up to mOffsets[n + 1] */
+	protected final int mOffsets[];
+
+	/** Target node ID of each edge slot */
+	protected final int mTargets[];
+
+	/** Weight of each edge slot */
+	protected final int mWeights[];
+
+	/** Per-node alias tables over the edge slots, see AliasTable.build() */
+	protected final double mProbability[];
+	protected final int mAlias[];
+
+	/** Shortest distance from each node to the trailer, see terminalDistances() */
+	protected final int mDistances[];
+
+	private final RandomSource.PerThread mRandom = new RandomSource.PerThread(RandomSource.create());
+
+	/**
+	 * Wrap arrays describing a graph. The snapshot takes ownership of them.
+	 * @param dictionary resolves the token IDs in nodeTokens
+	 * @param tupleLength tuple length of the chain
+	 * @param nodeTokens token IDs, tupleLength per node, padded with -1
+	 * @param offsets edge slot where each node starts, plus one past the end
+	 * @param targets target node ID of each edge slot
+	 * @param weights weight of each edge slot
+	 */
+	public MarkovSnapshot(TokenDictionary<T> dictionary, int tupleLength,
+			int nodeTokens[], int offsets[], int targets[], int weights[]) {
+		mDictionary = dictionary;
+		mTupleLength = tupleLength;
+		mNodeTokens = nodeTokens;
+		mOffsets = offsets;
+		mTargets = targets;
+		mWeights = weights;
+
+		mProbability = new double[targets.length];
+		mAlias = new int[targets.length];
+		for(int n = 0; n + 1 < offsets.length; n++) {
+			int sz = offsets[n + 1] - offsets[n];
+			if(sz > 0) AliasTable.build(weights, offsets[n], sz, mProbability, mAlias);
+		}
+
+		mDistances = terminalDistances(offsets.length - 1, i -> offsets[i], i -> targets[i]);
+	}
+
+	/**
+	 * Find the shortest distance from every node to the trailer with one
+	 * breadth-first search back from it over the reversed edges, as
+	 * MarkovChain does for its own graph. The arrays are passed as lookups
+	 * so the mapped layout can use this on its buffers too.
+	 * @param nodes number of nodes, header and trailer included
+	 * @param offsets edge slot where each node starts, plus one past the end
+	 * @param targets target node ID of each edge slot
+	 * @return distances by node ID, with MarkovChain.UNREACHABLE for nodes that never terminate
+	 */
+	static int[] terminalDistances(int nodes, IntUnaryOperator offsets, IntUnaryOperator targets) {
+		int edges = offsets.applyAsInt(nodes);
+
+		// Group the edges' sources by target.
+		int reverse[] = new int[nodes + 1];
+		for(int i = 0; i < edges; i++) reverse[targets.applyAsInt(i) + 1]++;
+		for(int i = 0; i < nodes; i++) reverse[i + 1] += reverse[i];
+
+		int sources[] = new int[edges];
+		int fill[] = Arrays.copyOf(reverse, nodes);
+		for(int n = 0; n < nodes; n++) {
+			int end = offsets.applyAsInt(n + 1);
+			for(int i = offsets.applyAsInt(n); i < end; i++) sources[fill[targets.applyAsInt(i)]++] = n;
+		}
+
+		int distances[] = new int[nodes];
+		Arrays.fill(distances, MarkovChain.UNREACHABLE);
+		int queue[] = fill;
+		int head = 0, tail = 0;
+
+		distances[TRAILER] = 0;
+		queue[tail++] = TRAILER;
+
+		while(head < tail) {
+			int n = queue[head++];
+			for(int i = reverse[n]; i < reverse[n + 1]; i++) {
+				int source = sources[i];
+				if(distances[source] != MarkovChain.UNREACHABLE) continue;
+				distances[source] = distances[n] + 1;
+				queue[tail++] = source;
+			}
+		}
+
+		return distances;
+	}
+
+	public TokenDictionary<T> getDictionary() {
+		return mDictionary;
+	}
+
+	public int getTupleLength() {
+		return mTupleLength;
+	}
+
+	/**
+	 * Get the number of nodes in this graph, not counting header and trailer.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return mOffsets.length - 3;
+	}
+
+	/**
+	 * Get the number of edges in this graph.
+	 * @return number of edges
+	 */
+	public int getEdgeCount() {
+		return mTargets.length;
+	}
+
+	/**
+	 * Use the graph to randomly generate a possibly valid phrase.
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase() {
+		return makePhrase(mRandom.get());
+	}
+
+	/**
+	 * Generate a phrase drawing from the given source of randomness.
+	 * @param rng source of randomness
+	 * @return generated phrase
+	 */
+	public ArrayList<T> makePhrase(RandomSource rng) {
+		ArrayList<T> phrase = new ArrayList<T>();
+		int current = step(HEADER, rng);
+
+		while(current >= 0 && current != TRAILER) {
+			int base = current * mTupleLength;
+			for(int i = base; i < base + mTupleLength && mNodeTokens[i] >= 0; i++) {
+				phrase.add(mDictionary.get(mNodeTokens[i]));
+			}
+			current = step(current, rng);
+		}
+
+		return phrase;
+	}
+
+	/**
+	 * Randomly choose the node after the given one.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if there are no edges
+	 */
+	protected int next(int node, RandomSource rng) {
+		int start = mOffsets[node];
+		int sz = mOffsets[node + 1] - start;
+		if(sz == 0) return -1;
+
+		return mTargets[start + AliasTable.sample(mProbability, mAlias, start, sz, rng)];
+	}
+
+	/**
+	 * Choose the node after the given one, and if it can never reach the
+	 * trailer, choose again among the edges that get there fastest.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if there is no way to the trailer
+	 */
+	protected int step(int node, RandomSource rng) {
+		int next = next(node, rng);
+		if(next >= 0 && mDistances[next] == MarkovChain.UNREACHABLE) next = nextTerminal(node, rng);
+		return next;
+	}
+
+	/**
+	 * Randomly choose among the edges that lead to the trailer the
+	 * fastest, by weight.
+	 * @param node ID of the node we are at
+	 * @param rng source of randomness
+	 * @return ID of the next node, or -1 if no edge leads to the trailer
+	 */
+	protected int nextTerminal(int node, RandomSource rng) {
+		int start = mOffsets[node], end = mOffsets[node + 1];
+
+		int min = MarkovChain.UNREACHABLE;
+		int total = 0;
+		for(int i = start; i < end; i++) {
+			int d = mDistances[mTargets[i]];
+			if(d < min) {
+				min = d;
+				total = mWeights[i];
+			}
+			else if(d == min) {
+				total += mWeights[i];
+			}
+		}
+
+		if(min == MarkovChain.UNREACHABLE || total == 0) return -1;
+
+		int r = rng.nextInt(total);
+		for(int i = start; i < end; i++) {
+			if(mDistances[mTargets[i]] != min) continue;
+			r -= mWeights[i];
+			if(r < 0) return mTargets[i];
+		}
+
+		throw new IllegalStateException("Something terrible happened.");
+	}
+}
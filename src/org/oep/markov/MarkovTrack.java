@@ -83,15 +83,16 @@ public class MarkovTrack extends MarkovChain<MarkovTrack.MidiMessageWrapper> {
 	throws InvalidMidiDataException, IOException {
 		Sequence s = new Sequence(divisionType, resolution, 1);
 		Track t = s.createTrack();
-		reset();
+		Cursor notes = cursor(false, maxLength);
+		MarkovChain<Long>.Cursor lengths = mLengthChain.cursor(true, 0);
 		
 		int ticks = 0;
 		MidiMessageWrapper wrpmsg;
 		System.out.println("Max length: " + maxLength);
-		while((wrpmsg = next(maxLength)) != null) {
+		while((wrpmsg = notes.next()) != null) {
 			MidiMessage msg = wrpmsg.getMessage();
 			
-			long dt = mLengthChain.nextLoop();
+			long dt = lengths.next();
 			ticks += dt;
 			MidiEvent event = new MidiEvent(msg, ticks);
 			
@@ -0,0 +1,53 @@
+package org.oep.markov;
+
+/**
+ * Packs a short tuple of dictionary IDs into a single long so it can be
+ * used as a primitive hash key. Each position gets an equal share of the
+ * 64 bits and holds its ID plus one, leaving zero to mark the unused tail
+ * of an incomplete tuple. Orders 1 and 2 get 32 bits per ID, orders 3 and
+ * 4 get 16; tuples that don't fit have to be keyed some other way.
+ * @author OEP
+ *
+ */
+public final class PackedTuple {
+	/** Largest tuple length we can pack at all */
+	public static final int MAX_ORDER = 4;
+
+	private PackedTuple() {
+	}
+
+	/**
+	 * Bits given to each position for a chain of the given order.
+	 * @param order tuple length of the chain
+	 * @return bits per position, or 0 if the order can't be packed
+	 */
+	public static int bits(int order) {
+		if(order <= 2) return 32;
+		if(order <= MAX_ORDER) return 16;
+		return 0;
+	}
+
+	/**
+	 * Pack a tuple.
+	 * @param ids dictionary IDs of the tuple
+	 * @param size how many of them are in use
+	 * @param order tuple length of the chain
+	 * @return the packed key, or -1 if this tuple doesn't fit
+	 */
+	public static long pack(int ids[], int size, int order) {
+		int bits = bits(order);
+		if(bits == 0) return -1;
+
+		long limit = (1L << bits) - 1;
+		long key = 0;
+
+		for(int i = 0; i < size; i++) {
+			long slot = (long) ids[i] + 1;
+			// Never let a position be all ones, so no key can collide with -1.
+			if(slot >= limit) return -1;
+			key |= slot << (bits * i);
+		}
+
+		return key;
+	}
+}
@@ -0,0 +1,469 @@
+package org.oep.markov;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of learned phrases, with checkpoints, so that
+ * training survives a crash or a restart.
+ * <p>
+ * Phrases are buffered and written in batches, each framed with its
+ * length and a CRC32, so a torn write at the end of the log is detected
+ * and dropped on recovery. A removal is logged as an empty phrase
+ * followed by the phrase removed. A batch goes out once it fills up, once the
+ * oldest phrase in it has waited for the flush interval, or on flush().
+ * Until then it is only in memory, so a crash loses the batch being
+ * built: up to the batch size (64KB to start with) of phrases, logged
+ * over as long as the flush interval (a second) or longer if nothing
+ * else is appended to notice it's due. With sync on, a batch is forced
+ * to disk as it goes out; with it off, the operating system decides
+ * when, and a crash of the whole machine may lose a few seconds more.
+ * <p>
+ * If a batch fails to write, its phrases are dropped and the journal
+ * refuses appends until the next checkpoint, since part of the batch may
+ * have reached the log and recovery stops at the first torn batch.
+ * <p>
+ * The log is split into numbered segments. A checkpoint starts a new
+ * segment, saves the learner's state beside it, and only then deletes
+ * the older segments and checkpoint. Recovery loads the newest
+ * checkpoint and replays every segment written since.
+ * @author OEP
+ *
+ * @param <T> the type of data in the phrases
+ */
+public class PhraseJournal<T> implements Closeable {
+	/**
+	 * Saves or loads a learner's state to or from files based on a name
+	 * the journal picks.
+	 */
+	public interface Checkpoint {
+		void apply(File base) throws IOException;
+	}
+
+	private static final String SEGMENT = "journal.";
+	private static final String CHECKPOINT = "checkpoint.";
+	private static final String POINTER = "CHECKPOINT";
+
+	private final File mDirectory;
+	private final TokenCodec<T> mCodec;
+
+	/** Number of the segment we are appending to */
+	private long mSegment;
+	private FileChannel mChannel;
+
+	/** Encoded phrases waiting to be written */
+	private ByteBuffer mBatch = ByteBuffer.allocate(1 << 16);
+	private int mBatchPhrases = 0;
+	private long mBatchStarted;
+
+	private int mBatchSize = 1 << 16;
+	private long mFlushInterval = 1000;
+	private boolean mSync = true;
+
+	private final CRC32 mCrc = new CRC32();
+
+	/** Why the last batch failed to write, until a checkpoint moves past it */
+	private IOException mFailure;
+
+	/**
+	 * Open the journal in a directory, creating it if needed. Call
+	 * recover() before appending to pick up where the last run left off.
+	 * @param directory where the journal keeps its files
+	 * @param codec how to write the phrases' data
+	 * @throws IOException
+	 */
+	public PhraseJournal(File directory, TokenCodec<T> codec) throws IOException {
+		mDirectory = directory;
+		mCodec = codec;
+		Files.createDirectories(directory.toPath());
+
+		// Never append to a segment an earlier run may have torn.
+		long last = readPointer();
+		for(long segment : list(SEGMENT)) last = Math.max(last, segment);
+		mSegment = last + 1;
+		mChannel = open(mSegment);
+	}
+
+	/**
+	 * Set how many bytes of phrases to buffer before writing them out.
+	 * @param bytes batch size
+	 */
+	public synchronized void setBatchSize(int bytes) {
+		mBatchSize = Math.max(1, bytes);
+	}
+
+	/**
+	 * Set the longest a phrase may wait in the buffer. The wait is only
+	 * checked when something is appended, so a journal that goes quiet
+	 * should be flushed.
+	 * @param millis longest wait, or 0 to write every phrase at once
+	 */
+	public synchronized void setFlushInterval(long millis) {
+		mFlushInterval = Math.max(0, millis);
+	}
+
+	/**
+	 * Choose whether every batch is forced to disk as it is written.
+	 * @param sync true to force each batch
+	 */
+	public synchronized void setSync(boolean sync) {
+		mSync = sync;
+	}
+
+	/**
+	 * Log a phrase. Safe to call from any number of threads; phrases that
+	 * arrive while a batch is being written go out together in the next.
+	 * @param phrase the phrase
+	 * @throws UncheckedIOException if writing a batch fails, or an earlier one did
+	 */
+	public synchronized void append(List<T> phrase) {
+		checkFailure();
+		if(mBatchPhrases == 0) mBatchStarted = System.currentTimeMillis();
+		put(phrase);
+	}
+
+	/**
+	 * Log that a phrase was unlearned, so recovery takes it back out.
+	 * @param phrase the phrase
+	 * @throws UncheckedIOException if writing a batch fails, or an earlier one did
+	 */
+	public synchronized void appendRemoval(List<T> phrase) {
+		checkFailure();
+		if(mBatchPhrases == 0) mBatchStarted = System.currentTimeMillis();
+		put(0);
+		put(phrase);
+	}
+
+	private void checkFailure() {
+		if(mFailure != null) throw new UncheckedIOException("Journal failed to write; checkpoint to resume", mFailure);
+	}
+
+	/**
+	 * Add a phrase to the batch, and write the batch if it's due.
+	 */
+	private void put(List<T> phrase) {
+		put(phrase.size());
+		for(int i = 0; i < phrase.size(); i++) {
+			byte bytes[] = mCodec.encode(phrase.get(i));
+			put(bytes.length);
+			reserve(bytes.length);
+			mBatch.put(bytes);
+		}
+		mBatchPhrases++;
+
+		if(mBatch.position() >= mBatchSize || System.currentTimeMillis() - mBatchStarted >= mFlushInterval) {
+			try {
+				flush();
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Log an array of data as a phrase.
+	 * @param phrase the phrase
+	 */
+	public void append(T phrase[]) {
+		append(Arrays.asList(phrase));
+	}
+
+	/**
+	 * Write out whatever is buffered. If that fails the batch is dropped
+	 * either way, and the journal stops taking appends, see the class doc.
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if(mBatchPhrases == 0) return;
+
+		mBatch.flip();
+		mCrc.reset();
+		mCrc.update(mBatch.array(), 0, mBatch.limit());
+
+		ByteBuffer frame = ByteBuffer.allocate(8);
+		frame.putInt(mBatch.limit());
+		frame.putInt((int) mCrc.getValue());
+		frame.flip();
+
+		try {
+			ByteBuffer buffers[] = { frame, mBatch };
+			while(mBatch.hasRemaining()) mChannel.write(buffers);
+			if(mSync) mChannel.force(false);
+		}
+		catch(IOException e) {
+			mFailure = e;
+			throw e;
+		}
+		finally {
+			mBatch.clear();
+			mBatchPhrases = 0;
+		}
+	}
+
+	/**
+	 * Take a checkpoint. The caller must make sure nothing is learned
+	 * between this call starting and the checkpoint being saved, usually
+	 * by holding whatever lock guards its appends. A journal that failed to
+	 * write takes appends again once a checkpoint has been saved.
+	 * @param save saves the learner's state to files based on the given name
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(Checkpoint save) throws IOException {
+		// Everything logged so far is covered by the checkpoint; later phrases go to a new segment.
+		flush();
+		if(mFailure == null) mChannel.force(false);
+		mChannel.close();
+		mChannel = open(++mSegment);
+
+		save.apply(new File(mDirectory, CHECKPOINT + mSegment));
+		writePointer(mSegment);
+		mFailure = null;
+
+		// The checkpoint is durable, so what it replaces can go.
+		for(long segment : list(SEGMENT)) {
+			if(segment < mSegment) Files.delete(new File(mDirectory, SEGMENT + segment).toPath());
+		}
+		for(File f : mDirectory.listFiles()) {
+			String name = f.getName();
+			if(name.startsWith(CHECKPOINT) && number(name, CHECKPOINT.length()) != mSegment) {
+				Files.delete(f.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Save a chain as a checkpoint. See checkpoint(Checkpoint).
+	 * @param chain the chain being journaled
+	 * @throws IOException
+	 */
+	public void checkpoint(final MarkovChain<T> chain) throws IOException {
+		checkpoint(base -> ChainFile.save(chain, mCodec, base));
+	}
+
+	/**
+	 * Load the newest checkpoint, if there is one, and replay every phrase
+	 * logged after it. Removals are skipped.
+	 * @param load loads the learner's state from files based on the given name
+	 * @param replay learns each replayed phrase, without logging it again
+	 * @return how many phrases were replayed
+	 * @throws IOException
+	 */
+	public long recover(Checkpoint load, Consumer<List<T>> replay) throws IOException {
+		return recover(load, replay, phrase -> { });
+	}
+
+	/**
+	 * Load the newest checkpoint, if there is one, and replay every phrase
+	 * and removal logged after it, in the order they were logged.
+	 * @param load loads the learner's state from files based on the given name
+	 * @param replay learns each replayed phrase, without logging it again
+	 * @param remove unlearns each replayed removal, without logging it again
+	 * @return how many phrases and removals were replayed
+	 * @throws IOException
+	 */
+	public synchronized long recover(Checkpoint load, Consumer<List<T>> replay, Consumer<List<T>> remove) throws IOException {
+		long checkpoint = readPointer();
+		if(checkpoint > 0) load.apply(new File(mDirectory, CHECKPOINT + checkpoint));
+
+		long count = 0;
+		for(long segment : list(SEGMENT)) {
+			if(segment >= checkpoint && segment < mSegment) count += replay(segment, replay, remove);
+		}
+		return count;
+	}
+
+	/**
+	 * Restore a chain from its checkpoint and the log. The chain should be
+	 * empty, and is not journaled while its phrases are replayed.
+	 * @param chain the chain to restore
+	 * @return how many phrases were replayed
+	 * @throws IOException
+	 */
+	public long recover(final MarkovChain<T> chain) throws IOException {
+		PhraseJournal<T> journal = chain.mJournal;
+		chain.mJournal = null;
+		try {
+			return recover(base -> ChainFile.load(base, mCodec, chain), chain::addPhrase, chain::removePhrase);
+		}
+		finally {
+			chain.mJournal = journal;
+		}
+	}
+
+	/**
+	 * Flush and close the journal.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		flush();
+		mChannel.close();
+	}
+
+	private long replay(long segment, Consumer<List<T>> replay, Consumer<List<T>> remove) throws IOException {
+		FileChannel channel = FileChannel.open(new File(mDirectory, SEGMENT + segment).toPath(), StandardOpenOption.READ);
+		long count = 0;
+		try {
+			ByteBuffer frame = ByteBuffer.allocate(8);
+			ByteBuffer batch = ByteBuffer.allocate(1 << 16);
+			CRC32 crc = new CRC32();
+
+			while(true) {
+				frame.clear();
+				if(!fill(channel, frame)) break;
+				int length = frame.getInt(0);
+				int checksum = frame.getInt(4);
+				if(length <= 0) break;
+
+				if(length > batch.capacity()) batch = ByteBuffer.allocate(length);
+				batch.clear();
+				batch.limit(length);
+				if(!fill(channel, batch)) break;
+
+				// A torn batch can only be the last thing a crashed run wrote.
+				crc.reset();
+				crc.update(batch.array(), 0, length);
+				if((int) crc.getValue() != checksum) break;
+
+				batch.flip();
+				while(batch.hasRemaining()) {
+					int size = getVarint(batch);
+					boolean removal = (size == 0);
+					if(removal) size = getVarint(batch);
+					ArrayList<T> phrase = new ArrayList<T>(size);
+					for(int i = 0; i < size; i++) {
+						int n = getVarint(batch);
+						int start = batch.position();
+						phrase.add(mCodec.decode(batch, n));
+						batch.position(start + n);
+					}
+					if(removal) remove.accept(phrase);
+					else replay.accept(phrase);
+					count++;
+				}
+			}
+		}
+		finally {
+			channel.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Read until the buffer is full.
+	 * @return false if the channel ran out first
+	 */
+	private static boolean fill(FileChannel channel, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(channel.read(buf) < 0) return false;
+		}
+		return true;
+	}
+
+	private FileChannel open(long segment) throws IOException {
+		return FileChannel.open(new File(mDirectory, SEGMENT + segment).toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+	}
+
+	private void put(int v) {
+		reserve(5);
+		while((v & ~0x7F) != 0) {
+			mBatch.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		mBatch.put((byte) v);
+	}
+
+	private void reserve(int n) {
+		if(mBatch.remaining() >= n) return;
+
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(mBatch.capacity() * 2, mBatch.position() + n));
+		mBatch.flip();
+		bigger.put(mBatch);
+		mBatch = bigger;
+	}
+
+	private static int getVarint(ByteBuffer buf) throws IOException {
+		int v = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = buf.get();
+			v |= (b & 0x7F) << shift;
+			if(b >= 0) return v;
+		}
+		throw new IOException("Bad varint in journal");
+	}
+
+	/**
+	 * List the numbers of the files with the given prefix.
+	 */
+	private long[] list(String prefix) {
+		File files[] = mDirectory.listFiles();
+		long numbers[] = new long[files.length];
+		int count = 0;
+		for(File f : files) {
+			if(!f.getName().startsWith(prefix)) continue;
+			long n = number(f.getName(), prefix.length());
+			if(n > 0) numbers[count++] = n;
+		}
+		numbers = Arrays.copyOf(numbers, count);
+		Arrays.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Parse the number in a file name, up to the next dot.
+	 * @return the number, or -1 if there isn't one
+	 */
+	private static long number(String name, int start) {
+		int end = name.indexOf('.', start);
+		if(end < 0) end = name.length();
+		try {
+			return Long.parseLong(name.substring(start, end));
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private long readPointer() throws IOException {
+		File pointer = new File(mDirectory, POINTER);
+		if(!pointer.exists()) return 0;
+
+		String text = new String(Files.readAllBytes(pointer.toPath()), StandardCharsets.UTF_8).trim();
+		try {
+			return Long.parseLong(text);
+		}
+		catch(NumberFormatException e) {
+			throw new IOException(String.format("Bad checkpoint pointer '%s'", text));
+		}
+	}
+
+	private void writePointer(long segment) throws IOException {
+		File temp = new File(mDirectory, POINTER + ".tmp");
+		FileChannel channel = FileChannel.open(temp.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			channel.write(ByteBuffer.wrap(Long.toString(segment).getBytes(StandardCharsets.UTF_8)));
+			channel.force(false);
+		}
+		finally {
+			channel.close();
+		}
+
+		Files.move(temp.toPath(), new File(mDirectory, POINTER).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
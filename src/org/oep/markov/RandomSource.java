@@ -0,0 +1,119 @@
+package org.oep.markov;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Where chains and cursors get their random numbers from. The default
+ * implementation is a SplittableRandom, which keeps its state in plain
+ * fields rather than an AtomicLong; every thread and every cursor gets
+ * its own instance split off a common root, so generating in parallel
+ * never contends and a seeded root reproduces the same output.
+ * @author OEP
+ *
+ */
+public abstract class RandomSource {
+	/**
+	 * Get a random int in [0, bound).
+	 * @param bound exclusive upper bound, which must be positive
+	 * @return random int
+	 */
+	public abstract int nextInt(int bound);
+
+	/**
+	 * Get a random double in [0, 1).
+	 * @return random double
+	 */
+	public abstract double nextDouble();
+
+	/**
+	 * Make a new, statistically independent source from this one. Callers
+	 * sharing a source between threads must synchronize on it to split.
+	 * @return the new source
+	 */
+	public abstract RandomSource split();
+
+	/**
+	 * Make a source seeded from the clock.
+	 * @return new source
+	 */
+	public static RandomSource create() {
+		return new Splittable(new SplittableRandom());
+	}
+
+	/**
+	 * Make a source that always produces the same sequence for a seed.
+	 * @param seed the seed
+	 * @return new source
+	 */
+	public static RandomSource create(long seed) {
+		return new Splittable(new SplittableRandom(seed));
+	}
+
+	/**
+	 * Adapt a java.util.Random, for callers that already have one.
+	 * Splits are seeded from it.
+	 * @param rng the Random to draw from
+	 * @return new source
+	 */
+	public static RandomSource wrap(final Random rng) {
+		return new RandomSource() {
+			public int nextInt(int bound) {
+				return rng.nextInt(bound);
+			}
+
+			public double nextDouble() {
+				return rng.nextDouble();
+			}
+
+			public RandomSource split() {
+				return create(rng.nextLong());
+			}
+		};
+	}
+
+	private static class Splittable extends RandomSource {
+		private final SplittableRandom mRandom;
+
+		Splittable(SplittableRandom random) {
+			mRandom = random;
+		}
+
+		public int nextInt(int bound) {
+			return mRandom.nextInt(bound);
+		}
+
+		public double nextDouble() {
+			return mRandom.nextDouble();
+		}
+
+		public RandomSource split() {
+			return new Splittable(mRandom.split());
+		}
+	}
+
+	/**
+	 * Gives each thread that asks its own source, split off a common root.
+	 */
+	public static class PerThread extends ThreadLocal<RandomSource> {
+		private final RandomSource mRoot;
+
+		public PerThread(RandomSource root) {
+			mRoot = root;
+		}
+
+		protected RandomSource initialValue() {
+			return split();
+		}
+
+		/**
+		 * Split a fresh source off the root, for a cursor or a worker.
+		 * @return new source
+		 */
+		public RandomSource split() {
+			synchronized(mRoot) {
+				return mRoot.split();
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.oep.markov;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns tokens into bytes and back, so chains can be saved to disk.
+ * @author OEP
+ *
+ * @param <T> the type of token
+ */
+public interface TokenCodec<T> {
+	/**
+	 * Encode a token.
+	 * @param token the token
+	 * @return its bytes
+	 */
+	byte[] encode(T token);
+
+	/**
+	 * Decode a token, consuming exactly length bytes from the buffer.
+	 * @param buf buffer positioned at the token's first byte
+	 * @param length how many bytes the token takes
+	 * @return the token
+	 */
+	T decode(ByteBuffer buf, int length);
+
+	/** Strings as UTF-8 */
+	public static final TokenCodec<String> STRING = new TokenCodec<String>() {
+		public byte[] encode(String token) {
+			return token.getBytes(StandardCharsets.UTF_8);
+		}
+
+		public String decode(ByteBuffer buf, int length) {
+			String s;
+			if(buf.hasArray()) {
+				s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+				buf.position(buf.position() + length);
+			}
+			else {
+				byte bytes[] = new byte[length];
+				buf.get(bytes);
+				s = new String(bytes, StandardCharsets.UTF_8);
+			}
+			return s;
+		}
+	};
+
+	/** Longs as eight big-endian bytes */
+	public static final TokenCodec<Long> LONG = new TokenCodec<Long>() {
+		public byte[] encode(Long token) {
+			return ByteBuffer.allocate(8).putLong(token).array();
+		}
+
+		public Long decode(ByteBuffer buf, int length) {
+			if(length != 8) throw new IllegalArgumentException(String.format("A long takes 8 bytes, not %d", length));
+			return buf.getLong();
+		}
+	};
+}
@@ -0,0 +1,81 @@
+package org.oep.markov;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps each distinct token to a dense int ID and back. Chains store only
+ * the IDs, so a token is kept once no matter how often it occurs, and
+ * hashing or comparing tuples never touches the tokens themselves.
+ * A dictionary may be shared between any number of chains and threads.
+ * @author OEP
+ *
+ * @param <T> the type of token
+ */
+public class TokenDictionary<T> {
+	/** Resolves a token to its ID */
+	private final ConcurrentHashMap<T, Integer> mIds = new ConcurrentHashMap<T, Integer>();
+
+	/** Resolves an ID to its token. Replaced, never shrunk, as it grows. */
+	private volatile Object mTokens[] = new Object[64];
+
+	/** How many tokens we have handed out IDs for */
+	private volatile int mSize = 0;
+
+	/**
+	 * Get the ID of a token, assigning it the next free ID if it is new.
+	 * @param token the token to look up
+	 * @return the token's ID
+	 */
+	public int intern(T token) {
+		Integer id = mIds.get(token);
+		if(id != null) return id;
+
+		synchronized(this) {
+			id = mIds.get(token);
+			if(id != null) return id;
+
+			int n = mSize;
+			Object tokens[] = mTokens;
+			if(n == tokens.length) {
+				tokens = Arrays.copyOf(tokens, n * 2);
+				mTokens = tokens;
+			}
+
+			// Publish the token before the ID so get() always finds it.
+			tokens[n] = token;
+			mSize = n + 1;
+			mIds.put(token, n);
+			return n;
+		}
+	}
+
+	/**
+	 * Get the ID of a token without assigning one.
+	 * @param token the token to look up
+	 * @return the token's ID, or -1 if it has none
+	 */
+	public int lookup(T token) {
+		Integer id = mIds.get(token);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * Get the token for an ID.
+	 * @param id an ID handed out by this dictionary
+	 * @return the token
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int id) {
+		if(id < 0 || id >= mSize) throw new IndexOutOfBoundsException("No token with ID " + id);
+		return (T) mTokens[id];
+	}
+
+	/**
+	 * Get the number of distinct tokens.
+	 * @return number of tokens
+	 */
+	public int size() {
+		return mSize;
+	}
+}
@@ -0,0 +1,55 @@
+package org.oep.markov.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.oep.markov.MarkovChain;
+
+/**
+ * Measures how much addPhrase allocates once the chain has already seen
+ * everything it is being fed. The steady state should be zero bytes per phrase.
+ * @author OEP
+ *
+ */
+public class AllocationTest {
+	public static void main(String [] args) {
+		com.sun.management.ThreadMXBean bean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		// Make up a corpus of short tweet-sized phrases over a modest vocabulary.
+		Random r = new Random(42);
+		int phrases = 20000;
+		String corpus[][] = new String[phrases][];
+		for(int i = 0; i < phrases; i++) {
+			String phrase[] = new String[5 + r.nextInt(15)];
+			for(int j = 0; j < phrase.length; j++) phrase[j] = "w" + r.nextInt(5000);
+			corpus[i] = phrase;
+		}
+
+		for(int order = 1; order <= 6; order++) {
+			MarkovChain<String> chain = new MarkovChain<String>(order);
+
+			// First pass builds the graph; a few more let the JIT settle.
+			for(int pass = 0; pass < 5; pass++) {
+				for(String phrase[] : corpus) chain.addPhrase(phrase);
+			}
+
+			ArrayList<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+			for(String phrase[] : corpus) lists.add(new ArrayList<String>(Arrays.asList(phrase)));
+
+			long before = bean.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for(String phrase[] : corpus) chain.addPhrase(phrase);
+			for(ArrayList<String> phrase : lists) chain.addPhrase(phrase);
+			long dt = System.nanoTime() - start;
+			long bytes = bean.getThreadAllocatedBytes(thread) - before;
+
+			System.out.printf("Order %d: %.2f bytes/phrase, %.2f us/phrase (%d nodes, %d edges)\n",
+					order, (double) bytes / (2 * phrases), dt / 1000.0 / (2 * phrases),
+					chain.getNodeCount(), chain.getEdgeCount());
+		}
+	}
+}
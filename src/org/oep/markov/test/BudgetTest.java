@@ -0,0 +1,183 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.oep.markov.MarkovChain;
+import org.oep.markov.RandomSource;
+
+/**
+ * Learns and generates with chains that forget: under an edge budget, under
+ * a memory budget and through a window. Both take edges away from nodes
+ * that go on learning, so every phrase is followed by a generated one.
+ * @author OEP
+ *
+ */
+public class BudgetTest {
+	public static void main(String [] args) {
+		edgeBudget(1, 100, 50);
+		edgeBudget(2, 1000, 200);
+		memoryBudget();
+		deadEnds();
+		window();
+		windowedReaders();
+		Checks.done();
+	}
+
+	/**
+	 * Eviction used to leave the edge index and Fenwick tree of the nodes it
+	 * trimmed pointing past their edges, which the next phrase tripped over.
+	 */
+	static void edgeBudget(int order, int budget, int words) {
+		MarkovChain<String> chain = new MarkovChain<String>(order);
+		chain.setSeed(1);
+		chain.setEdgeBudget(budget);
+
+		int over = 0;
+		for(String phrase[] : Checks.corpus(new Random(order), 2000, 6, 6, words)) {
+			chain.addPhrase(phrase);
+			if(chain.getEdgeCount() > budget) over++;
+			chain.makePhrase();
+		}
+		System.out.printf("Order %d: %d nodes, %d edges\n", order, chain.getNodeCount(), chain.getEdgeCount());
+		check(over == 0, "order %d stays within %d edges (over %d times)", order, budget, over);
+		check(chain.getEdgeCount() > budget / 2, "order %d keeps learning (%d edges)", order, chain.getEdgeCount());
+	}
+
+	/**
+	 * The memory budget evicts like the edge budget, and the lightest edges
+	 * go first, so a phrase learned often outlives the noise around it.
+	 */
+	static void memoryBudget() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.setSeed(1);
+		for(int i = 0; i < 100; i++) chain.addPhrase(new String[] { "keep", "me" });
+		long budget = 64 * 1024;
+		chain.setMemoryBudget(budget);
+
+		int over = 0;
+		for(String phrase[] : Checks.corpus(new Random(5), 20000, 2, 10, 2000)) {
+			chain.addPhrase(phrase);
+			if(chain.getMemoryUsage() > budget) over++;
+			chain.makePhrase();
+		}
+		System.out.printf("Memory: %d bytes, %d nodes, %d edges\n", chain.getMemoryUsage(), chain.getNodeCount(), chain.getEdgeCount());
+		check(over == 0, "stays within %d bytes (over %d times)", budget, over);
+		check(Checks.edges(chain).contains("keep\tme\t100\n"), "keeps the heaviest edge");
+	}
+
+	/**
+	 * The heaviest edges here make a loop between a and b whose ways out
+	 * are lighter, so eviction takes them. What's left can't end, and has
+	 * to go too, or a walk that doesn't steer would never stop.
+	 */
+	static void deadEnds() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		for(int i = 0; i < 2; i++) {
+			chain.addPhrase("s a b a b a b".split(" "));
+			chain.addPhrase("s a c".split(" "));
+		}
+		for(int i = 0; i < 50; i++) chain.addPhrase(new String[] { "f" + i, "g" + i });
+		chain.setEdgeBudget(5);
+		check(Checks.deadEnds(chain) == 0, "eviction leaves no node that can't end (%d edges left)", chain.getEdgeCount());
+
+		// Big enough to keep a way out, which has to stay.
+		chain = new MarkovChain<String>(1);
+		for(int i = 0; i < 3; i++) chain.addPhrase("s a b a b a b".split(" "));
+		for(int i = 0; i < 50; i++) chain.addPhrase(new String[] { "f" + i, "g" + i });
+		chain.setEdgeBudget(10);
+		check(Checks.deadEnds(chain) == 0 && chain.getEdgeCount() > 0, "eviction keeps what can still end (%d edges left)", chain.getEdgeCount());
+
+		int longest = 0;
+		for(int i = 0; i < 1000; i++) longest = Math.max(longest, chain.snapshot().makePhrase(RandomSource.create(i)).size());
+		check(longest > 0, "a snapshot of what's left ends its phrases (longest %d)", longest);
+	}
+
+	/**
+	 * A windowed chain holds exactly what a chain fed only the epochs in the
+	 * window would.
+	 */
+	static void window() {
+		final int epochs = 10, window = 3;
+		String corpus[][] = Checks.corpus(new Random(3), 5000, 2, 8, 300);
+
+		MarkovChain<String> windowed = new MarkovChain<String>(2);
+		windowed.setSeed(1);
+		windowed.setWindow(window);
+		int perEpoch = corpus.length / epochs;
+		for(int e = 0; e < epochs; e++) {
+			if(e > 0) windowed.advanceEpoch();
+			for(int i = e * perEpoch; i < (e + 1) * perEpoch; i++) {
+				windowed.addPhrase(corpus[i]);
+				windowed.makePhrase();
+			}
+		}
+
+		MarkovChain<String> recent = new MarkovChain<String>(2);
+		for(int i = (epochs - window) * perEpoch; i < corpus.length; i++) recent.addPhrase(corpus[i]);
+
+		check(Checks.edges(windowed).equals(Checks.edges(recent)), "window of %d holds the last %d epochs (%d edges)", window, window, windowed.getEdgeCount());
+		check(windowed.getNodeCount() == recent.getNodeCount(), "window reclaims expired nodes (%d vs %d)", windowed.getNodeCount(), recent.getNodeCount());
+	}
+
+	/**
+	 * Cursors may share a chain that isn't learning, windowed or not.
+	 * Once the epoch moves on, every node is behind it, and walking them
+	 * must read around the expired weight rather than drop it.
+	 */
+	static void windowedReaders() {
+		final MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.setWindow(3);
+		String corpus[][] = Checks.corpus(new Random(4), 3000, 2, 8, 200);
+		for(int i = 0; i < corpus.length; i++) {
+			if(i % 1000 == 0 && i > 0) chain.advanceEpoch();
+			chain.addPhrase(corpus[i]);
+		}
+		chain.advanceEpoch();
+		chain.advanceEpoch();
+		int edges = chain.getEdgeCount();
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread threads[] = new Thread[8];
+		for(int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						MarkovChain<String>.Cursor cursor = chain.cursor(true, 20, RandomSource.create(id));
+						for(int i = 0; i < 200000; i++) cursor.next();
+					}
+					catch(Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch(InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		check(failure.get() == null, "8 cursors walk a windowed chain together (%s)", failure.get());
+		check(chain.getEdgeCount() == edges, "walking leaves expired edges to the learner (%d edges)", chain.getEdgeCount());
+
+		// Only the last epoch is left, and readers only ever take its phrases' words.
+		int stale = 0;
+		RandomSource rng = RandomSource.create(9);
+		Set<String> recent = new HashSet<String>();
+		for(int i = 2000; i < corpus.length; i++) recent.addAll(Arrays.asList(corpus[i]));
+		for(int i = 0; i < 1000; i++) {
+			for(String word : chain.makePhrase(rng)) if(!recent.contains(word)) stale++;
+		}
+		check(stale == 0, "readers skip expired weight (%d stale words)", stale);
+	}
+}
@@ -0,0 +1,70 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.oep.markov.MarkovChain;
+
+/**
+ * Learns the same phrases through a PhraseBuilder and through both kinds
+ * of addPhrase(), and checks a builder refuses to carry on from a node
+ * the chain has dropped.
+ * @author OEP
+ *
+ */
+public class BuilderTest {
+	public static void main(String [] args) {
+		same();
+		dropped();
+		Checks.done();
+	}
+
+	static void same() {
+		String corpus[][] = Checks.corpus(new Random(31), 20000, 1, 12, 400);
+		for(int order = 1; order <= 3; order++) {
+			MarkovChain<String> arrays = new MarkovChain<String>(order);
+			MarkovChain<String> lists = new MarkovChain<String>(order);
+			MarkovChain<String> built = new MarkovChain<String>(order);
+			MarkovChain<String>.PhraseBuilder builder = built.new PhraseBuilder();
+			for(String phrase[] : corpus) {
+				arrays.addPhrase(phrase);
+				lists.addPhrase(new LinkedList<String>(Arrays.asList(phrase)));
+				for(String data : phrase) builder.add(data);
+				builder.finish();
+			}
+
+			String expected = Checks.edges(arrays);
+			check(Checks.edges(lists).equals(expected) && Checks.edges(built).equals(expected),
+					"order %d learns the same %d edges every way", order, arrays.getEdgeCount());
+		}
+	}
+
+	/**
+	 * Learning in the middle of a built phrase can reclaim the node it's up
+	 * to, and then the builder has to say so instead of linking a dead node in.
+	 */
+	static void dropped() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		MarkovChain<String>.PhraseBuilder builder = chain.new PhraseBuilder();
+		builder.add("doomed");
+		chain.setEdgeBudget(10);
+		for(int i = 0; i < 100; i++) chain.addPhrase(new String[] { "w" + i, "w" + i });
+		chain.expire();
+
+		boolean threw = false;
+		try {
+			builder.add("after");
+		}
+		catch(IllegalStateException e) {
+			threw = true;
+		}
+		check(threw, "a builder whose node was reclaimed throws");
+
+		builder.add("again");
+		builder.finish();
+		check(Checks.edges(chain).contains("\tagain\t1\n"), "and starts over with the next phrase");
+	}
+}
@@ -0,0 +1,111 @@
+package org.oep.markov.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.oep.markov.EdgeList;
+import org.oep.markov.MarkovChain;
+import org.oep.markov.MarkovSnapshot;
+
+/**
+ * Bits the behaviour harnesses share: a check that fails loudly, a way to
+ * compare two chains' graphs, and random corpora.
+ * @author OEP
+ *
+ */
+class Checks {
+	private static int mPassed = 0;
+
+	/**
+	 * Print the check if it holds, throw if it doesn't.
+	 */
+	static void check(boolean ok, String format, Object... args) {
+		String what = String.format(format, args);
+		if(!ok) throw new IllegalStateException("FAILED: " + what);
+		mPassed++;
+		System.out.println("ok: " + what);
+	}
+
+	static void done() {
+		System.out.printf("%d checks passed\n", mPassed);
+	}
+
+	/**
+	 * A chain's edges as sorted text, so two graphs are the same if and
+	 * only if these are equal.
+	 */
+	static <T> String edges(MarkovChain<T> chain) {
+		StringWriter out = new StringWriter();
+		try {
+			EdgeList.write(chain, out);
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * A snapshot's edges in the same form, so it can be compared with a
+	 * chain's.
+	 */
+	static <T> String edges(MarkovSnapshot<T> snapshot) {
+		StringWriter out = new StringWriter();
+		try {
+			EdgeList.write(snapshot, out);
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Count the nodes in a chain's graph with no way to the trailer,
+	 * working backwards from the trailer over its edge list.
+	 */
+	static <T> int deadEnds(MarkovChain<T> chain) {
+		HashMap<String, List<String>> sources = new HashMap<String, List<String>>();
+		HashSet<String> nodes = new HashSet<String>();
+		String lines[] = edges(chain).split("\n");
+		for(int i = 1; i < lines.length; i++) {
+			String edge[] = lines[i].split("\t", -1);
+			nodes.add(edge[0]);
+			nodes.add(edge[1]);
+			sources.computeIfAbsent(edge[1], k -> new ArrayList<String>()).add(edge[0]);
+		}
+
+		// The trailer is the empty target, and the header the empty source.
+		HashSet<String> ends = new HashSet<String>();
+		ArrayDeque<String> queue = new ArrayDeque<String>();
+		queue.add("");
+		while(!queue.isEmpty()) {
+			String n = queue.remove();
+			if(!ends.add(n)) continue;
+			for(String source : sources.getOrDefault(n, Collections.<String>emptyList())) queue.add(source);
+		}
+		nodes.removeAll(ends);
+		return nodes.size();
+	}
+
+	/**
+	 * Random phrases of a few to a few more words.
+	 */
+	static String[][] corpus(Random r, int phrases, int minLength, int maxLength, int words) {
+		String corpus[][] = new String[phrases][];
+		for(int i = 0; i < phrases; i++) {
+			String phrase[] = new String[minLength + r.nextInt(maxLength - minLength + 1)];
+			for(int j = 0; j < phrase.length; j++) phrase[j] = "w" + r.nextInt(words);
+			corpus[i] = phrase;
+		}
+		return corpus;
+	}
+}
@@ -0,0 +1,74 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.oep.markov.ConcurrentMarkovChain;
+import org.oep.markov.MarkovChain;
+
+/**
+ * Feeds the same corpus to a ConcurrentMarkovChain from several threads at
+ * once, to a plain MarkovChain from one, and to a MarkovChain through
+ * addPhrases(), and checks they all end up the same.
+ * @author OEP
+ *
+ */
+public class ConcurrentTest {
+	public static void main(String [] args) throws InterruptedException {
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final int order = 2;
+
+		Random r = new Random(7);
+		final String corpus[][] = new String[200000][];
+		for(int i = 0; i < corpus.length; i++) {
+			String phrase[] = new String[5 + r.nextInt(15)];
+			for(int j = 0; j < phrase.length; j++) phrase[j] = "w" + r.nextInt(2000);
+			corpus[i] = phrase;
+		}
+
+		MarkovChain<String> serial = new MarkovChain<String>(order);
+		long start = System.currentTimeMillis();
+		for(String phrase[] : corpus) serial.addPhrase(phrase);
+		System.out.printf("1 thread: %d ms\n", System.currentTimeMillis() - start);
+
+		final ConcurrentMarkovChain<String> chain = new ConcurrentMarkovChain<String>(order);
+		Thread workers[] = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final int offset = t;
+			final int stride = threads;
+			workers[t] = new Thread() {
+				public void run() {
+					for(int i = offset; i < corpus.length; i += stride) chain.addPhrase(corpus[i]);
+				}
+			};
+		}
+
+		start = System.currentTimeMillis();
+		for(Thread t : workers) t.start();
+		for(Thread t : workers) t.join();
+		System.out.printf("%d threads: %d ms\n", threads, System.currentTimeMillis() - start);
+
+		check(serial.getNodeCount() == chain.getNodeCount() && serial.getEdgeCount() == chain.getEdgeCount(),
+				"%d threads learn the same %d nodes and %d edges as one", threads, chain.getNodeCount(), chain.getEdgeCount());
+		check(Checks.edges(chain.snapshot()).equals(Checks.edges(serial)), "%d threads learn the same weights as one", threads);
+
+		MarkovChain<String> batched = new MarkovChain<String>(order);
+		start = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		batched.addPhrases(Arrays.stream(corpus).map(Arrays::asList), pool);
+		System.out.printf("addPhrases: %d ms\n", System.currentTimeMillis() - start);
+		check(Checks.edges(batched).equals(Checks.edges(serial)), "addPhrases() builds the same graph as addPhrase()");
+
+		// Shards evict within their share of the budget, so they never hold much more than it between them.
+		MarkovChain<String> budgeted = new MarkovChain<String>(order);
+		budgeted.setEdgeBudget(100000);
+		budgeted.addPhrases(Arrays.stream(corpus).map(Arrays::asList), pool);
+		pool.shutdown();
+		check(budgeted.getEdgeCount() <= 100000, "addPhrases() keeps to the edge budget (%d edges)", budgeted.getEdgeCount());
+		System.out.println(chain.makePhrase());
+		Checks.done();
+	}
+}
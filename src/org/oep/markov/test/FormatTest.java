@@ -0,0 +1,329 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.oep.markov.ChainFile;
+import org.oep.markov.ChainXml;
+import org.oep.markov.MappedMarkovChain;
+import org.oep.markov.MarkovChain;
+import org.oep.markov.MarkovSentence;
+import org.oep.markov.RandomSource;
+import org.oep.markov.TokenCodec;
+
+/**
+ * Checks that the chain file formats read back what was written,
+ * including XML dumps from before names were escaped.
+ * @author OEP
+ *
+ */
+public class FormatTest {
+	private static final String TEXT =
+			"Don't <3 rock & roll. Tom's <b> & Jerry! Rock & roll all night. Don't stop & don't <3 it?";
+
+	public static void main(String [] args) throws IOException, InterruptedException {
+		legacyXml();
+		xml();
+		chainFile();
+		mapped();
+		mappedLoops();
+		Checks.done();
+	}
+
+	/**
+	 * The fixtures were exported by the original MarkovSentence from TEXT,
+	 * so they should load into the graph today's exporters write for it.
+	 */
+	private static void legacyXml() throws IOException {
+		String expected = Checks.edges(reload(sentence(), true));
+
+		MarkovChain<String> chain = new MarkovChain<String>(2);
+		ChainXml.load(fixture("legacy-sentence.xml"), chain, Function.identity());
+		String loaded = Checks.edges(chain);
+		check(loaded.equals(expected), "legacy export() dump loads the same graph");
+		check(loaded.contains("\ndon't <3\trock &\t"), "names keep their quotes, brackets and ampersands");
+
+		chain = new MarkovChain<String>(2);
+		ChainXml.load(fixture("legacy-chain.xml"), chain, Function.identity());
+		check(Checks.edges(chain).equals(expected), "legacy exportXML() dump loads the same graph");
+	}
+
+	/**
+	 * Today's dumps are proper XML, and go through the XML parser.
+	 */
+	private static void xml() throws IOException {
+		MarkovSentence sentence = sentence();
+		String xml = new String(exportXml(sentence), "UTF-8");
+		check(xml.startsWith("<?xml") && xml.contains("don&apos;t") && xml.contains("&lt;3"), "exportXML() declares itself and escapes names");
+
+		String expected = Checks.edges(reload(sentence, true));
+		check(Checks.edges(reload(sentence, false)).equals(expected), "export() and exportXML() dumps load the same graph");
+		check(Checks.edges(reload(reload(sentence, true), true)).equals(expected), "a reloaded chain exports the same graph");
+
+		// A dump with a declaration isn't read leniently.
+		byte broken[] = "<?xml version='1.0'?>\n<markov>\n\t<node name='[a, <b]'>\n</markov>\n".getBytes("UTF-8");
+		boolean threw = false;
+		try {
+			ChainXml.load(new ByteArrayInputStream(broken), new MarkovChain<String>(2), Function.identity());
+		}
+		catch(IOException e) {
+			threw = true;
+		}
+		check(threw, "malformed XML is an error");
+
+		// Nor does it read anything a DTD points at.
+		File secret = File.createTempFile("format", ".txt");
+		try {
+			Files.write(secret.toPath(), "secret".getBytes("UTF-8"));
+			String entity = "<?xml version='1.0'?>\n<!DOCTYPE chain [ <!ENTITY e SYSTEM '" + secret.toURI() + "'> ]>\n"
+					+ "<chain>\n<header id='0'>[]<edge id='2' /></header>\n<node id='2'>[a, &e;]<edge id='1' /></node>\n"
+					+ "<trailer id='1'>[]</trailer>\n</chain>\n";
+			MarkovChain<String> chain = new MarkovChain<String>(2);
+			try {
+				ChainXml.load(new ByteArrayInputStream(entity.getBytes("UTF-8")), chain, Function.identity());
+			}
+			catch(IOException e) {
+				System.out.println(e.getMessage());
+			}
+			check(!Checks.edges(chain).contains("secret"), "external entities aren't read");
+		}
+		finally {
+			secret.delete();
+		}
+	}
+
+	/**
+	 * A saved chain loads back with its weights, across more than one
+	 * buffer's worth of file, and damage is caught before the chain is
+	 * touched.
+	 */
+	private static void chainFile() throws IOException {
+		MarkovChain<String> chain = new MarkovChain<String>(2);
+		for(String phrase[] : Checks.corpus(new Random(8), 20000, 2, 10, 1000)) chain.addPhrase(phrase);
+		chain.addPhrase(new String[] { "caf\u00e9", "\u00fcber", "\u65e5\u672c" });
+		String expected = Checks.edges(chain);
+
+		File file = File.createTempFile("format", ".chain");
+		try {
+			ChainFile.save(chain, TokenCodec.STRING, file);
+			ChainFile.save(chain, TokenCodec.STRING, file);
+			check(!new File(file.getPath() + ".tmp").exists(), "saving over a file leaves nothing beside it");
+
+			MarkovChain<String> loaded = new MarkovChain<String>(2);
+			ChainFile.load(file, TokenCodec.STRING, loaded);
+			check(Checks.edges(loaded).equals(expected), "a %d byte save loads the same graph and weights", file.length());
+
+			check(fails(file, 3), "a save doesn't load into a chain of another tuple length");
+
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			try {
+				long middle = raw.length() / 2;
+				raw.seek(middle);
+				int b = raw.read();
+				raw.seek(middle);
+				raw.write(b ^ 0x10);
+				check(fails(file, 2), "a flipped bit fails the checksum and leaves the chain alone");
+
+				raw.seek(middle);
+				raw.write(b);
+				raw.setLength(raw.length() - 100);
+				check(fails(file, 2), "a truncated save fails and leaves the chain alone");
+			}
+			finally {
+				raw.close();
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * A mapped chain generates what the chain it was written from would.
+	 * Each phrase has words of its own, so anything generated must be a
+	 * phrase we learned, and phrase i is learned i + 1 times, so that's
+	 * how often it should come up. Tokens are decoded lazily, so several
+	 * threads generate at once.
+	 */
+	private static void mapped() throws IOException, InterruptedException {
+		final int phrases = 40;
+		final Set<List<String>> learned = new HashSet<List<String>>();
+		MarkovChain<String> chain = new MarkovChain<String>(2);
+		for(int i = 0; i < phrases; i++) {
+			String phrase[] = { "p" + i, "caf\u00e9" + i, "q" + i };
+			for(int j = 0; j <= i; j++) chain.addPhrase(phrase);
+			learned.add(Arrays.asList(phrase));
+		}
+
+		File file = File.createTempFile("format", ".mapped");
+		try {
+			MappedMarkovChain.write(chain, TokenCodec.STRING, file);
+			final MappedMarkovChain<String> mapped = new MappedMarkovChain<String>(file, TokenCodec.STRING);
+			check(mapped.getNodeCount() == chain.getNodeCount() && mapped.getEdgeCount() == chain.getEdgeCount(),
+					"mapped chain has %d nodes and %d edges", mapped.getNodeCount(), mapped.getEdgeCount());
+
+			final int samples = 20000;
+			final AtomicInteger unknown = new AtomicInteger();
+			final int counts[][] = new int[4][phrases];
+			Thread threads[] = new Thread[counts.length];
+			for(int t = 0; t < threads.length; t++) {
+				final int id = t;
+				threads[t] = new Thread() {
+					public void run() {
+						RandomSource rng = RandomSource.create(id);
+						for(int i = 0; i < samples; i++) {
+							List<String> phrase = mapped.makePhrase(rng);
+							if(!learned.contains(phrase)) unknown.incrementAndGet();
+							else counts[id][Integer.parseInt(phrase.get(0).substring(1))]++;
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for(Thread thread : threads) thread.join();
+			check(unknown.get() == 0, "mapped chain only makes learned phrases (%d others)", unknown.get());
+
+			int total = phrases * (phrases + 1) / 2, off = 0;
+			for(int i = 0; i < phrases; i++) {
+				int count = 0;
+				for(int c[] : counts) count += c[i];
+				double expected = (double) (i + 1) / total;
+				if(Math.abs((double) count / (samples * counts.length) - expected) > 0.005) off++;
+			}
+			check(off == 0, "mapped chain samples by weight (%d off)", off);
+
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			raw.setLength(raw.length() / 2);
+			raw.close();
+			boolean threw = false;
+			try {
+				new MappedMarkovChain<String>(file, TokenCodec.STRING);
+			}
+			catch(IOException e) {
+				threw = true;
+			}
+			check(threw, "a truncated mapped chain doesn't open");
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * A mapped chain steers around loops without an end the way the chain
+	 * does, whether the file carries the distances to the trailer or is
+	 * from version 1, which didn't.
+	 */
+	private static void mappedLoops() throws IOException {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.addPhrase("a b a b a b c".split(" "));
+		chain.addTransition(new ArrayList<String>(), Arrays.asList("x"), 3);
+		chain.addTransition(Arrays.asList("x"), Arrays.asList("y"), 1);
+		chain.addTransition(Arrays.asList("y"), Arrays.asList("x"), 1);
+		chain.addTransition(Arrays.asList("b"), Arrays.asList("z"), 5);
+		chain.addTransition(Arrays.asList("z"), Arrays.asList("z"), 1);
+
+		File file = File.createTempFile("format", ".mapped");
+		try {
+			MappedMarkovChain.write(chain, TokenCodec.STRING, file);
+			check(endsEveryPhrase(new MappedMarkovChain<String>(file, TokenCodec.STRING)), "mapped phrases never enter a loop without an end");
+
+			// Version 1 is the same without the distances, which sit after the running weights.
+			ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			int tuple = bytes.getInt(8), nodes = bytes.getInt(12), edges = bytes.getInt(16);
+			int distances = 4 * (8 + nodes * tuple + nodes + 1 + 2 * edges);
+			ByteBuffer old = ByteBuffer.allocate(bytes.capacity() - 4 * nodes);
+			old.put(bytes.array(), 0, distances);
+			old.put(bytes.array(), distances + 4 * nodes, bytes.capacity() - distances - 4 * nodes);
+			old.putInt(4, 1);
+			Files.write(file.toPath(), old.array());
+			check(endsEveryPhrase(new MappedMarkovChain<String>(file, TokenCodec.STRING)), "version 1 mapped phrases never enter one either");
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static boolean endsEveryPhrase(MappedMarkovChain<String> mapped) {
+		RandomSource rng = RandomSource.create(9);
+		for(int i = 0; i < 10000; i++) {
+			List<String> phrase = mapped.makePhrase(rng);
+			if(phrase.isEmpty() || !phrase.get(phrase.size() - 1).equals("c")) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check that loading a file throws without teaching the chain anything.
+	 */
+	private static boolean fails(File file, int order) {
+		MarkovChain<String> chain = new MarkovChain<String>(order);
+		try {
+			ChainFile.load(file, TokenCodec.STRING, chain);
+			return false;
+		}
+		catch(IOException e) {
+			System.out.println(e.getMessage());
+			return chain.getEdgeCount() == 0 && chain.getNodeCount() == 0;
+		}
+	}
+
+	private static MarkovSentence sentence() {
+		MarkovSentence sentence = new MarkovSentence(2);
+		sentence.setTokenChars("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789'&<");
+		sentence.setTerminateChars(".!?");
+		sentence.parseSentence(TEXT);
+		return sentence;
+	}
+
+	/**
+	 * Export a chain and load it into a fresh one.
+	 * @param chain the chain to export
+	 * @param ids whether to use exportXML() instead of MarkovSentence.export()
+	 */
+	private static MarkovChain<String> reload(MarkovChain<String> chain, boolean ids) throws IOException {
+		MarkovChain<String> loaded = new MarkovChain<String>(2);
+		if(ids) {
+			ChainXml.load(new ByteArrayInputStream(exportXml(chain)), loaded, Function.identity());
+			return loaded;
+		}
+
+		File file = File.createTempFile("format", ".xml");
+		try {
+			((MarkovSentence) chain).export(file.getPath());
+			ChainXml.load(file, loaded, Function.identity());
+		}
+		finally {
+			file.delete();
+		}
+		return loaded;
+	}
+
+	private static byte[] exportXml(MarkovChain<String> chain) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		chain.exportXML(out);
+		return out.toByteArray();
+	}
+
+	private static InputStream fixture(String name) throws IOException {
+		InputStream in = FormatTest.class.getResourceAsStream(name);
+		if(in == null) throw new IOException(String.format("Missing fixture %s", name));
+		return in;
+	}
+}
@@ -23,17 +23,32 @@ public class GradualTest {
 		shortChain.addPhrase(shortPhrase1);
 		shortChain.addPhrase(shortPhrase2);
 		
+		// Each walk gets its own cursor, so they can run in lockstep.
+		MarkovChain<String>.Cursor longCursor = longChain.cursor();
+		MarkovChain<String>.Cursor shortCursor = shortChain.cursor(true, 0);
+		
 		String shorty, longy;
-		while((longy = longChain.next()) != null) {
-			shorty = shortChain.nextLoop();
+		while((longy = longCursor.next()) != null) {
+			shorty = shortCursor.next();
 			System.out.printf("%s (%s)\n", longy, shorty);
 		}
 		
-		longChain.reset();
+		longCursor.reset();
 		
-		while((longy = longChain.next()) != null) {
+		while((longy = longCursor.next()) != null) {
 			System.out.printf("%s", longy);
 		}
 		System.out.println();
+		
+		// Two cursors on the same chain don't disturb each other.
+		MarkovChain<String>.Cursor first = longChain.cursor();
+		MarkovChain<String>.Cursor second = longChain.cursor();
+		String a = first.next(), b = second.next();
+		while(a != null || b != null) {
+			System.out.printf("%s/%s ", a, b);
+			a = first.next();
+			b = second.next();
+		}
+		System.out.println();
 	}
 }
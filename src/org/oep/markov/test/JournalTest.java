@@ -0,0 +1,123 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.oep.markov.MarkovChain;
+import org.oep.markov.PhraseJournal;
+import org.oep.markov.TokenCodec;
+import org.oep.overmind.TweetOvermind;
+
+/**
+ * Journals a chain, abandons it without closing the journal, tears the
+ * last write and recovers, checking the recovered chain matches. Then
+ * does the same through a TweetOvermind.
+ * @author OEP
+ *
+ */
+public class JournalTest {
+	public static void main(String [] args) throws IOException {
+		File dir = Files.createTempDirectory("journal-test").toFile();
+		try {
+			chain(dir);
+			clean(dir);
+			overmind(dir);
+		}
+		finally {
+			clean(dir);
+			dir.delete();
+		}
+		Checks.done();
+	}
+
+	static void chain(File dir) throws IOException {
+		String corpus[][] = Checks.corpus(new Random(17), 20000, 1, 10, 500);
+
+		MarkovChain<String> chain = new MarkovChain<String>(2);
+		PhraseJournal<String> journal = new PhraseJournal<String>(dir, TokenCodec.STRING);
+		journal.setSync(false);
+		chain.setJournal(journal);
+		for(int i = 0; i < corpus.length; i++) {
+			chain.addPhrase(corpus[i]);
+			if(i == corpus.length / 3) journal.checkpoint(chain);
+		}
+
+		// A crash: what was flushed is all there is, and the last write is half done.
+		journal.flush();
+		File segment = newest(dir);
+		RandomAccessFile torn = new RandomAccessFile(segment, "rw");
+		try {
+			torn.seek(torn.length());
+			torn.writeInt(1000);
+			torn.writeInt(12345);
+			torn.write(new byte[100]);
+		}
+		finally {
+			torn.close();
+		}
+
+		MarkovChain<String> recovered = new MarkovChain<String>(2);
+		PhraseJournal<String> reopened = new PhraseJournal<String>(dir, TokenCodec.STRING);
+		long count = reopened.recover(recovered);
+		check(count == corpus.length - corpus.length / 3 - 1, "replays the %d phrases after the checkpoint", count);
+		check(Checks.edges(recovered).equals(Checks.edges(chain)), "recovers the same graph, torn tail dropped");
+
+		// Appending after recovery goes to a new segment, which the next recovery also replays.
+		recovered.setJournal(reopened);
+		recovered.addPhrase(new String[] { "one", "more" });
+		reopened.close();
+
+		MarkovChain<String> again = new MarkovChain<String>(2);
+		new PhraseJournal<String>(dir, TokenCodec.STRING).recover(again);
+		check(Checks.edges(again).equals(Checks.edges(recovered)), "recovers what was learned after a recovery");
+	}
+
+	/**
+	 * Recovery learns straight into the chain and publishes one snapshot,
+	 * so a long journal comes back in time proportional to its length.
+	 */
+	static void overmind(File dir) throws IOException {
+		Random r = new Random(19);
+		TweetOvermind overmind = new TweetOvermind("", "", 1, 3, TweetOvermind.TWITTER_ALPHANUMERIC, ".?!");
+		overmind.openJournal(dir);
+		overmind.setSnapshotInterval(0);
+		int tweets = 20000;
+		for(int i = 0; i < tweets; i++) {
+			StringBuilder tweet = new StringBuilder();
+			for(int j = 0; j < 3 + r.nextInt(10); j++) tweet.append("w").append(r.nextInt(3000)).append(' ');
+			overmind.parseSentence(tweet.toString());
+			if(i % 2 == 0) overmind.forgetSentence(tweet.toString());
+		}
+		overmind.closeJournal();
+
+		TweetOvermind restarted = new TweetOvermind("", "", 1, 3, TweetOvermind.TWITTER_ALPHANUMERIC, ".?!");
+		restarted.setSnapshotInterval(0);
+		long start = System.currentTimeMillis();
+		long count = restarted.openJournal(dir);
+		System.out.printf("Replayed %d records in %d ms\n", count, System.currentTimeMillis() - start);
+		restarted.closeJournal();
+
+		check(count == tweets + tweets / 2, "replays every tweet and deletion (%d)", count);
+		check(restarted.getNodeCount() == overmind.getNodeCount() && restarted.getEdgeCount() == overmind.getEdgeCount(),
+				"recovers the same chain (%d nodes, %d edges)", restarted.getNodeCount(), restarted.getEdgeCount());
+		check(restarted.makeTweet() != null, "generates from the recovered snapshot");
+	}
+
+	private static File newest(File dir) {
+		File newest = null;
+		for(File f : dir.listFiles()) {
+			if(!f.getName().startsWith("journal.")) continue;
+			if(newest == null || Long.parseLong(f.getName().substring(8)) > Long.parseLong(newest.getName().substring(8))) newest = f;
+		}
+		return newest;
+	}
+
+	private static void clean(File dir) {
+		for(File f : dir.listFiles()) f.delete();
+	}
+}
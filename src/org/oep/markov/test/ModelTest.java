@@ -0,0 +1,107 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.oep.markov.CompactMarkovChain;
+import org.oep.markov.ConcurrentMarkovChain;
+import org.oep.markov.MarkovChain;
+import org.oep.markov.MarkovModel;
+import org.oep.markov.RandomSource;
+
+/**
+ * Runs the same checks over every kind of chain through MarkovModel, with
+ * hubs big enough that CompactMarkovChain indexes and samples through a
+ * Fenwick tree.
+ * @author OEP
+ *
+ */
+public class ModelTest {
+	public static void main(String [] args) {
+		String corpus[][] = Checks.corpus(new Random(7), 20000, 2, 10, 500);
+		MarkovModel<String> expected = null;
+
+		for(int kind = 0; kind < KINDS; kind++) {
+			MarkovModel<String> model = model(kind, 2);
+			String name = model.getClass().getSimpleName();
+			long start = System.currentTimeMillis();
+			for(String phrase[] : corpus) model.addPhrase(phrase);
+			System.out.printf("%s: %d nodes, %d edges in %d ms\n", name, model.getNodeCount(), model.getEdgeCount(),
+					System.currentTimeMillis() - start);
+
+			if(expected == null) expected = model;
+			check(model.getNodeCount() == expected.getNodeCount() && model.getEdgeCount() == expected.getEdgeCount(),
+					"%s learns the same graph", name);
+
+			hub(model(kind, 1));
+		}
+
+		compact();
+		Checks.done();
+	}
+
+	private static final int KINDS = 3;
+
+	static MarkovModel<String> model(int kind, int order) {
+		switch(kind) {
+		case 0: return new MarkovChain<String>(order);
+		case 1: return new CompactMarkovChain<String>(order);
+		default: return new ConcurrentMarkovChain<String>(order);
+		}
+	}
+
+	/**
+	 * Every phrase starts at the header, so it's a hub with one edge per
+	 * first word. One word starts half the phrases and should start half of
+	 * what we generate; the rest are followed by words of their own, so
+	 * anything generated must be a phrase we learned.
+	 */
+	static void hub(MarkovModel<String> model) {
+		String name = model.getClass().getSimpleName();
+		HashSet<List<String>> learned = new HashSet<List<String>>();
+		for(int i = 0; i < 3000; i++) {
+			String phrases[][] = { { "often", "heard" }, { "first" + i, "then" + i } };
+			for(String phrase[] : phrases) {
+				model.addPhrase(phrase);
+				learned.add(Arrays.asList(phrase));
+			}
+		}
+		// The hub, then each first word's edge and each last word's to the trailer.
+		check(model.getEdgeCount() == 3001 + 2 * 3001, "%s has a hub of 3001 edges", name);
+
+		RandomSource rng = RandomSource.create(11);
+		int often = 0, unknown = 0;
+		final int samples = 20000;
+		for(int i = 0; i < samples; i++) {
+			ArrayList<String> phrase = model.makePhrase(rng);
+			if(!learned.contains(phrase)) unknown++;
+			if(phrase.get(0).equals("often")) often++;
+		}
+		check(unknown == 0, "%s only makes learned phrases (%d others)", name, unknown);
+		check(Math.abs(often - samples / 2) < samples / 50, "%s samples the hub by weight (%d of %d)", name, often, samples);
+	}
+
+	/**
+	 * Compacting moves every block, which the index and trees must survive.
+	 */
+	static void compact() {
+		CompactMarkovChain<String> chain = new CompactMarkovChain<String>(1);
+		chain.setSeed(3);
+		for(int i = 0; i < 1000; i++) chain.addPhrase(new String[] { "w" + i, "end" });
+		chain.compact();
+		for(int i = 0; i < 1000; i++) chain.addPhrase(new String[] { "w" + i, "end" });
+		check(chain.getEdgeCount() == 2001, "compacted hub finds its edges (%d edges)", chain.getEdgeCount());
+
+		int bad = 0;
+		for(int i = 0; i < 1000; i++) {
+			ArrayList<String> phrase = chain.makePhrase();
+			if(phrase.size() != 2 || !phrase.get(1).equals("end")) bad++;
+		}
+		check(bad == 0, "compacted hub samples its edges (%d bad phrases)", bad);
+	}
+}
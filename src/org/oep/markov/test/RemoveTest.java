@@ -0,0 +1,120 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.oep.markov.MarkovChain;
+import org.oep.markov.PhraseJournal;
+import org.oep.markov.TokenCodec;
+
+/**
+ * Unlearns phrases with removePhrase() and checks the chain ends up as
+ * though they were never learned, that it refuses to remove what it
+ * doesn't have, and that removals survive a journal recovery.
+ * @author OEP
+ *
+ */
+public class RemoveTest {
+	public static void main(String [] args) throws IOException {
+		notEnoughWeight();
+		unlearn();
+		epochs();
+		journal();
+		Checks.done();
+	}
+
+	/**
+	 * A path that takes an edge more often than its weight allows isn't there.
+	 */
+	static void notEnoughWeight() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.addPhrase(new String[] { "a", "a" });
+		String before = Checks.edges(chain);
+
+		check(!chain.removePhrase(new String[] { "a", "a", "a" }), "won't remove a a a after learning a a");
+		check(Checks.edges(chain).equals(before), "refused removal changes nothing");
+		check(chain.removePhrase(new String[] { "a", "a" }), "removes a a");
+		chain.expire();
+		check(chain.getEdgeCount() == 0 && chain.getNodeCount() == 0, "leaves nothing behind");
+	}
+
+	/**
+	 * Learning two corpora and removing one leaves the other.
+	 */
+	static void unlearn() {
+		Random r = new Random(11);
+		String keep[][] = Checks.corpus(r, 3000, 1, 8, 200);
+		String drop[][] = Checks.corpus(r, 3000, 1, 8, 200);
+
+		MarkovChain<String> chain = new MarkovChain<String>(2);
+		chain.setSeed(1);
+		for(int i = 0; i < keep.length; i++) {
+			chain.addPhrase(keep[i]);
+			chain.addPhrase(drop[i]);
+		}
+		int removed = 0;
+		for(String phrase[] : drop) {
+			if(chain.removePhrase(phrase)) removed++;
+			chain.makePhrase();
+		}
+
+		MarkovChain<String> kept = new MarkovChain<String>(2);
+		for(String phrase[] : keep) kept.addPhrase(phrase);
+
+		check(removed == drop.length, "removes all %d phrases", drop.length);
+		check(Checks.edges(chain).equals(Checks.edges(kept)), "what's left is what was kept (%d edges)", chain.getEdgeCount());
+	}
+
+	/**
+	 * Removing from an older epoch leaves the newer epochs' weight alone.
+	 */
+	static void epochs() {
+		String phrase[] = { "x", "y" };
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.setWindow(2);
+		chain.addPhrase(phrase);
+		chain.advanceEpoch();
+		chain.addPhrase(phrase);
+
+		check(!chain.removePhrase(Arrays.asList(phrase), 2), "nothing to remove from a later epoch");
+		check(chain.removePhrase(Arrays.asList(phrase), 0), "removes from the first epoch");
+		check(!chain.removePhrase(Arrays.asList(phrase), 0), "first epoch has nothing left");
+
+		chain.advanceEpoch();
+		chain.expire();
+		check(chain.getEdgeCount() == 3, "second epoch's weight outlives the first epoch (%d edges)", chain.getEdgeCount());
+	}
+
+	/**
+	 * A journaled chain logs removals, so recovering it doesn't bring them back.
+	 */
+	static void journal() throws IOException {
+		File dir = Files.createTempDirectory("remove-test").toFile();
+		try {
+			String corpus[][] = Checks.corpus(new Random(13), 2000, 1, 6, 100);
+
+			MarkovChain<String> chain = new MarkovChain<String>(1);
+			PhraseJournal<String> journal = new PhraseJournal<String>(dir, TokenCodec.STRING);
+			chain.setJournal(journal);
+			for(int i = 0; i < corpus.length; i++) {
+				chain.addPhrase(corpus[i]);
+				if(i == corpus.length / 2) journal.checkpoint(chain);
+				if(i % 3 == 0) chain.removePhrase(corpus[i / 2]);
+			}
+			journal.close();
+
+			MarkovChain<String> recovered = new MarkovChain<String>(1);
+			long count = new PhraseJournal<String>(dir, TokenCodec.STRING).recover(recovered);
+			check(Checks.edges(recovered).equals(Checks.edges(chain)), "recovery replays %d phrases and removals", count);
+		}
+		finally {
+			for(File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.oep.markov.AliasTable;
+import org.oep.markov.FenwickTree;
+import org.oep.markov.IntIntHashMap;
+import org.oep.markov.MarkovChain;
+import org.oep.markov.RandomSource;
+
+/**
+ * Checks how nodes find their edges and choose among them: every way of
+ * choosing the next node picks edges in proportion to their weights, and
+ * hubs find the same edges through their index as a scan would.
+ * @author OEP
+ *
+ */
+public class SamplingTest {
+	private static final int SAMPLES = 100000;
+
+	public static void main(String [] args) {
+		aliasTable();
+		freeze();
+		fenwickTree();
+		hub();
+		intIntHashMap();
+		edgeIndex();
+		Checks.done();
+	}
+
+	/**
+	 * Outcomes come up as often as their weights say, and never when they
+	 * weigh nothing.
+	 */
+	static void aliasTable() {
+		int weights[] = { 1, 2, 3, 0, 4, 10 };
+		AliasTable table = new AliasTable(weights, weights.length);
+		RandomSource rng = RandomSource.create(1);
+
+		int counts[] = new int[weights.length];
+		for(int i = 0; i < SAMPLES; i++) counts[table.sample(rng)]++;
+
+		for(int i = 0; i < weights.length; i++) {
+			check(close(counts[i], weights[i], 20), "alias table draws outcome %d %d times for weight %d of 20", i, counts[i], weights[i]);
+		}
+	}
+
+	/**
+	 * A frozen chain draws through its alias tables, and a node that learns
+	 * afterwards goes back to drawing from its current weights.
+	 */
+	static void freeze() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		learn(chain, "a", 1);
+		learn(chain, "b", 3);
+		chain.freeze();
+
+		Map<String, Integer> counts = firstWords(chain);
+		check(close(counts.get("a"), 1, 4) && close(counts.get("b"), 3, 4), "frozen chain draws by weight %s", counts);
+
+		learn(chain, "c", 4);
+		counts = firstWords(chain);
+		check(close(counts.get("a"), 1, 8) && close(counts.get("b"), 3, 8) && close(counts.get("c"), 4, 8),
+				"chain that learned after freezing draws by its new weights %s", counts);
+	}
+
+	/**
+	 * A Fenwick tree agrees with a plain array of weights through adds,
+	 * appends and removals.
+	 */
+	static void fenwickTree() {
+		Random r = new Random(3);
+		FenwickTree tree = new FenwickTree(1);
+		int weights[] = new int[1000];
+		int size = 0, wrong = 0;
+
+		for(int step = 0; step < 20000; step++) {
+			int op = r.nextInt(10);
+			if(size == 0 || op < 3) {
+				if(size == weights.length) continue;
+				weights[size] = 1 + r.nextInt(5);
+				tree.append(weights[size++]);
+			}
+			else if(op < 4) {
+				tree.removeLast();
+				size--;
+			}
+			else {
+				int i = r.nextInt(size);
+				weights[i]++;
+				tree.add(i, 1);
+			}
+
+			int n = r.nextInt(size + 1), prefix = 0;
+			for(int i = 0; i < n; i++) prefix += weights[i];
+			if(tree.size() != size || tree.prefix(n) != prefix) wrong++;
+
+			// Every point in [0, total) lands in the weight whose range holds it.
+			int total = prefix;
+			for(int i = n; i < size; i++) total += weights[i];
+			if(total == 0) continue;
+			int point = r.nextInt(total), at = tree.find(point);
+			int before = 0;
+			for(int i = 0; i < at; i++) before += weights[i];
+			if(point < before || point >= before + weights[at]) wrong++;
+		}
+		check(wrong == 0, "Fenwick tree agrees with its weights (%d disagreements)", wrong);
+	}
+
+	/**
+	 * Past FENWICK_THRESHOLD edges the header samples through its tree,
+	 * which has to keep up with weight added to old edges and new ones.
+	 */
+	static void hub() {
+		int words = MarkovChain.FENWICK_THRESHOLD * 3, total = 0;
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		for(int i = 0; i < words; i++) {
+			learn(chain, "w" + i, 1);
+			total++;
+		}
+		for(int i = 0; i < words; i += 2) {
+			learn(chain, "w" + i, i + 1);
+			total += i + 1;
+		}
+
+		Map<String, Integer> counts = firstWords(chain);
+		int wrong = 0;
+		for(int i = 0; i < words; i++) {
+			int weight = (i % 2 == 0) ? i + 2 : 1;
+			if(!close(counts.get("w" + i), weight, total)) wrong++;
+		}
+		check(wrong == 0, "hub of %d edges draws by weight (%d off)", words, wrong);
+	}
+
+	/**
+	 * IntIntHashMap agrees with a HashMap through puts and removals, which
+	 * shift later keys back into the holes they leave.
+	 */
+	static void intIntHashMap() {
+		Random r = new Random(4);
+		IntIntHashMap map = new IntIntHashMap();
+		HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		int wrong = 0;
+
+		for(int step = 0; step < 100000; step++) {
+			int key = r.nextInt(2000) - 1000;
+			if(r.nextInt(3) == 0) {
+				Integer old = expected.remove(key);
+				if(map.remove(key) != (old == null ? IntIntHashMap.MISSING : old)) wrong++;
+			}
+			else {
+				int value = r.nextInt(1000);
+				expected.put(key, value);
+				map.put(key, value);
+			}
+
+			int probe = r.nextInt(2000) - 1000;
+			Integer value = expected.get(probe);
+			if(map.get(probe) != (value == null ? IntIntHashMap.MISSING : value)) wrong++;
+		}
+		check(wrong == 0 && map.size() == expected.size(), "IntIntHashMap agrees with a HashMap (%d disagreements)", wrong);
+	}
+
+	/**
+	 * Past EDGE_INDEX_THRESHOLD edges a node finds its edges by target, so
+	 * learning the same phrases in any order, or unlearning some, has to
+	 * give the same graph as learning the rest from scratch.
+	 */
+	static void edgeIndex() {
+		List<String[]> corpus = new ArrayList<String[]>();
+		for(String phrase[] : Checks.corpus(new Random(6), 5000, 2, 4, 100)) corpus.add(phrase);
+
+		MarkovChain<String> forward = new MarkovChain<String>(1);
+		for(String phrase[] : corpus) forward.addPhrase(phrase);
+
+		List<String[]> shuffled = new ArrayList<String[]>(corpus);
+		Collections.shuffle(shuffled, new Random(7));
+		MarkovChain<String> backward = new MarkovChain<String>(1);
+		for(String phrase[] : shuffled) backward.addPhrase(phrase);
+		check(Checks.edges(forward).equals(Checks.edges(backward)), "order of learning doesn't matter (%d edges)", forward.getEdgeCount());
+
+		// Dropping edges moves the last edge into the hole, which the index has to follow.
+		MarkovChain<String> rest = new MarkovChain<String>(1);
+		for(int i = 0; i < corpus.size(); i++) {
+			if(i % 3 == 0) forward.removePhrase(Arrays.asList(corpus.get(i)));
+			else rest.addPhrase(corpus.get(i));
+		}
+		check(Checks.edges(forward).equals(Checks.edges(rest)), "unlearning through the index leaves the rest (%d edges)", rest.getEdgeCount());
+	}
+
+	/**
+	 * Learn a phrase starting with the given word some number of times.
+	 */
+	static void learn(MarkovChain<String> chain, String first, int times) {
+		for(int i = 0; i < times; i++) chain.addPhrase(new String[] { first, "end" });
+	}
+
+	/**
+	 * Count how often each word starts a generated phrase.
+	 */
+	static Map<String, Integer> firstWords(MarkovChain<String> chain) {
+		RandomSource rng = RandomSource.create(2);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(int i = 0; i < SAMPLES; i++) counts.merge(chain.makePhrase(rng).get(0), 1, Integer::sum);
+		return counts;
+	}
+
+	/**
+	 * Check a count out of SAMPLES is within half a percent of weight / total.
+	 */
+	static boolean close(Integer count, int weight, int total) {
+		double expected = (double) weight / total;
+		return Math.abs((count == null ? 0 : count) / (double) SAMPLES - expected) < 0.005;
+	}
+}
@@ -1,14 +1,24 @@
 package org.oep.markov.test;
 
+import static org.oep.markov.test.Checks.check;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
 import org.oep.markov.MarkovSentence;
 
 public class SentenceTest {
 	
-	public static void main(String [] args) {
+	public static void main(String [] args) throws IOException {
+		parseFile();
+		
 		MarkovSentence ms = new MarkovSentence( 1 );
 		
 		URL url;
@@ -27,4 +37,58 @@ public class SentenceTest {
 		
 		
 	}
+	
+	private static MarkovSentence sentence() {
+		MarkovSentence ms = new MarkovSentence(2);
+		ms.setTokenChars("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789'");
+		ms.setTerminateChars(".!?");
+		return ms;
+	}
+	
+	/**
+	 * Parsing a file on several cores learns what parsing it as one String,
+	 * stream or reader does, and keeps each segment within the budget.
+	 */
+	static void parseFile() throws IOException {
+		String words[] = { "caf\u00e9", "na\u00efve", "\u65e5\u672c", "\u00fcber", "don't", "a1", "x", "ok" };
+		String ends[] = { ". ", "! ", "?\n", ".\n\n" };
+		Random r = new Random(29);
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 50000; i++) {
+			int length = 1 + r.nextInt(12);
+			for(int j = 0; j < length; j++) {
+				text.append(words[r.nextInt(words.length)]).append(r.nextInt(50));
+				text.append(j + 1 < length ? " " : ends[r.nextInt(ends.length)]);
+			}
+		}
+		String corpus = text.toString();
+		byte bytes[] = corpus.getBytes(StandardCharsets.UTF_8);
+		
+		Path file = Files.createTempFile("sentence-test", ".txt");
+		try {
+			Files.write(file, bytes);
+			
+			MarkovSentence string = sentence();
+			string.parseSentence(corpus);
+			MarkovSentence stream = sentence();
+			stream.parseSentence(new ByteArrayInputStream(bytes));
+			MarkovSentence reader = sentence();
+			reader.parseSentence(new StringReader(corpus));
+			MarkovSentence mapped = sentence();
+			mapped.parseFile(file, 4);
+			
+			String expected = Checks.edges(string);
+			check(Checks.edges(stream).equals(expected), "a stream learns what a String does (%d edges)", string.getEdgeCount());
+			check(Checks.edges(reader).equals(expected), "a reader learns what a String does");
+			check(Checks.edges(mapped).equals(expected), "parseFile() on 4 threads learns what a String does");
+			
+			MarkovSentence budgeted = sentence();
+			budgeted.setEdgeBudget(5000);
+			budgeted.parseFile(file, 4);
+			check(budgeted.getEdgeCount() <= 5000, "parseFile() keeps to the edge budget (%d edges)", budgeted.getEdgeCount());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
 }
@@ -0,0 +1,140 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.oep.markov.MarkovChain;
+import org.oep.markov.MarkovSnapshot;
+import org.oep.markov.RandomSource;
+import org.oep.overmind.TweetOvermind;
+
+/**
+ * Checks that snapshots keep the graph they were taken from however the
+ * chain changes afterwards, that they generate with the chain's
+ * probabilities, and that TweetOvermind publishes them on its interval.
+ * @author OEP
+ *
+ */
+public class SnapshotTest {
+	public static void main(String [] args) {
+		frozen();
+		probabilities();
+		terminates();
+		overmind();
+		Checks.done();
+	}
+
+	/**
+	 * Neither a snapshot nor one still to be built sees what the chain
+	 * learns, unlearns or compacts afterwards.
+	 */
+	static void frozen() {
+		Random r = new Random(23);
+		String before[][] = Checks.corpus(r, 2000, 1, 8, 300);
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.setWindow(2);
+		HashSet<String> pairs = new HashSet<String>();
+		for(String phrase[] : before) {
+			chain.addPhrase(phrase);
+			for(int i = 0; i + 1 < phrase.length; i++) pairs.add(phrase[i] + " " + phrase[i + 1]);
+		}
+		int nodes = chain.getNodeCount(), edges = chain.getEdgeCount();
+
+		MarkovSnapshot<String> snapshot = chain.snapshot();
+		Supplier<MarkovSnapshot<String>> later = chain.snapshotLater();
+
+		// New words, and the old ones gone.
+		chain.advanceEpoch();
+		for(String phrase[] : before) chain.removePhrase(phrase);
+		for(String phrase[] : Checks.corpus(r, 2000, 1, 8, 300)) {
+			for(int i = 0; i < phrase.length; i++) phrase[i] = "v" + phrase[i];
+			chain.addPhrase(phrase);
+		}
+		chain.advanceEpoch();
+		chain.compactDictionary();
+		MarkovSnapshot<String> built = later.get();
+
+		check(snapshot.getNodeCount() == nodes && snapshot.getEdgeCount() == edges, "snapshot keeps %d nodes and %d edges", nodes, edges);
+		check(built.getNodeCount() == nodes && built.getEdgeCount() == edges, "snapshot built later keeps them too");
+
+		int bad = 0;
+		for(int i = 0; i < 5000; i++) {
+			ArrayList<String> phrase = (i % 2 == 0 ? snapshot : built).makePhrase();
+			for(int j = 0; j + 1 < phrase.size(); j++) {
+				if(!pairs.contains(phrase.get(j) + " " + phrase.get(j + 1))) bad++;
+			}
+		}
+		check(bad == 0, "snapshots only generate what was learned before them (%d strays)", bad);
+	}
+
+	/**
+	 * A snapshot picks each edge in proportion to its weight, hubs included.
+	 */
+	static void probabilities() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		for(int i = 0; i < 300; i++) chain.addPhrase(new String[] { "x", "a" });
+		for(int i = 0; i < 100; i++) chain.addPhrase(new String[] { "x", "b" });
+		for(int i = 0; i < 100; i++) chain.addPhrase(new String[] { "x", "c" + i });
+		MarkovSnapshot<String> snapshot = chain.snapshot();
+
+		int a = 0, b = 0, n = 100000;
+		for(int i = 0; i < n; i++) {
+			String next = snapshot.makePhrase().get(1);
+			if(next.equals("a")) a++;
+			else if(next.equals("b")) b++;
+		}
+		check(Math.abs(a / (double) n - 0.6) < 0.01 && Math.abs(b / (double) n - 0.2) < 0.01,
+				"x goes to a %.3f and b %.3f of the time, for 0.6 and 0.2", a / (double) n, b / (double) n);
+	}
+
+	/**
+	 * Like the chain, a snapshot steers around loops without an end, both
+	 * from the header and part way through a phrase, and still goes round
+	 * the ones that have one.
+	 */
+	static void terminates() {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+		chain.addPhrase("a b a b a b a b c".split(" "));
+		chain.addTransition(new ArrayList<String>(), Arrays.asList("x"), 1);
+		chain.addTransition(Arrays.asList("x"), Arrays.asList("y"), 1);
+		chain.addTransition(Arrays.asList("y"), Arrays.asList("x"), 1);
+		chain.addTransition(Arrays.asList("b"), Arrays.asList("z"), 5);
+		chain.addTransition(Arrays.asList("z"), Arrays.asList("z"), 1);
+		MarkovSnapshot<String> snapshot = chain.snapshot();
+
+		RandomSource rng = RandomSource.create(5);
+		int stuck = 0, looped = 0;
+		for(int i = 0; i < 10000; i++) {
+			ArrayList<String> phrase = snapshot.makePhrase(rng);
+			if(phrase.contains("x") || phrase.contains("y") || phrase.contains("z")) stuck++;
+			if(phrase.size() > 3) looped++;
+			if(!phrase.get(phrase.size() - 1).equals("c")) stuck++;
+		}
+		check(stuck == 0, "snapshot phrases never enter a loop without an end (%d did)", stuck);
+		check(looped > 0, "snapshot phrases still go round a and b (%d did)", looped);
+	}
+
+	/**
+	 * TweetOvermind holds off publishing until its interval is up, unless asked.
+	 */
+	static void overmind() {
+		TweetOvermind overmind = new TweetOvermind("", "", 1, 3, TweetOvermind.TWITTER_ALPHANUMERIC, ".?!");
+		overmind.setSnapshotInterval(60 * 60 * 1000);
+		overmind.parseSentence("hello world");
+		check(!overmind.makeTweet().toLowerCase().contains("hello"), "nothing is published before the interval is up");
+
+		overmind.publishSnapshot();
+		check(overmind.makeTweet().toLowerCase().contains("hello"), "publishSnapshot() publishes at once");
+
+		overmind.setSnapshotInterval(0);
+		overmind.parseSentence("goodbye");
+		overmind.forgetSentence("hello world");
+		overmind.parseSentence("goodbye");
+		check(overmind.makeTweet().toLowerCase().contains("goodbye"), "an interval of 0 publishes after every tweet");
+	}
+}
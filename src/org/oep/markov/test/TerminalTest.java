@@ -0,0 +1,83 @@
+package org.oep.markov.test;
+
+import static org.oep.markov.test.Checks.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.oep.markov.MarkovChain;
+import org.oep.markov.RandomSource;
+
+/**
+ * Walks graphs with cycles, some of which never reach the trailer, to
+ * check that generation always ends and that a cursor with a maximum
+ * length heads for the trailer by the shortest way.
+ * @author OEP
+ *
+ */
+public class TerminalTest {
+	public static void main(String [] args) {
+		MarkovChain<String> chain = new MarkovChain<String>(1);
+
+		// a and b loop until b gives up to c, which ends the phrase.
+		chain.addPhrase("a b a b a b a b c".split(" "));
+
+		// x and y loop forever, and the header can still get into the loop.
+		chain.addTransition(list(), list("x"), 1);
+		chain.addTransition(list("x"), list("y"), 1);
+		chain.addTransition(list("y"), list("x"), 1);
+
+		makePhrase(chain);
+		cursor(chain, 5);
+		cursor(chain, 20);
+
+		// Learning a way out of the loop makes it usable again.
+		chain.addTransition(list("y"), list(), 1);
+		int looped = 0;
+		RandomSource rng = RandomSource.create(2);
+		for(int i = 0; i < 1000; i++) {
+			if(chain.makePhrase(rng).contains("y")) looped++;
+		}
+		check(looped > 0, "a new way out of the loop is taken (%d phrases)", looped);
+		Checks.done();
+	}
+
+	/**
+	 * Phrases never step onto a node that can't end, not even the first,
+	 * so neither x nor y ever comes up.
+	 */
+	static void makePhrase(MarkovChain<String> chain) {
+		RandomSource rng = RandomSource.create(1);
+		int stuck = 0, longest = 0;
+		for(int i = 0; i < 10000; i++) {
+			ArrayList<String> phrase = chain.makePhrase(rng);
+			if(phrase.contains("x") || phrase.contains("y")) stuck++;
+			longest = Math.max(longest, phrase.size());
+		}
+		check(stuck == 0, "makePhrase() never enters a loop without an end (%d did)", stuck);
+		System.out.printf("Longest phrase: %d\n", longest);
+	}
+
+	/**
+	 * Past its maximum length a cursor takes the shortest way to the
+	 * trailer, which is at most two more elements from a or b, and none
+	 * from x, which has no way there at all.
+	 */
+	static void cursor(MarkovChain<String> chain, int maxLength) {
+		RandomSource rng = RandomSource.create(maxLength);
+		int over = 0, reached = 0;
+		for(int i = 0; i < 10000; i++) {
+			MarkovChain<String>.Cursor cursor = chain.cursor(false, maxLength, rng);
+			while(cursor.next() != null && cursor.getElementCount() <= maxLength + 2) { }
+			if(cursor.getElementCount() > maxLength + 2) over++;
+			if(cursor.getElementCount() >= maxLength) reached++;
+		}
+		check(over == 0, "cursors stop within %d elements (%d didn't)", maxLength + 2, over);
+		check(reached > 0, "some cursors reach %d elements (%d did)", maxLength, reached);
+	}
+
+	private static List<String> list(String... data) {
+		return new ArrayList<String>(Arrays.asList(data));
+	}
+}
@@ -13,7 +13,7 @@ public class OvermindMain {
 	public static final String TOKEN_CHARS = "_&'?.;!:" + TweetOvermind.TWITTER_ALPHANUMERIC;
 	
 	public static void main(String args[]) {
-		if(args.length < 5 || args.length > 6) {
+		if(args.length < 5 || args.length > 7) {
 			printUsage();
 			System.exit(1);
 		}
@@ -43,6 +43,15 @@ public class OvermindMain {
 		
 		System.out.printf("Created instance of TweetOvermind using username '%s'\n", overmind.getUsername());
 		
+		// Pick up where the last run left off.
+		if(args.length >= 7) {
+			try {
+				System.out.printf("Replayed %d tweets from %s\n", overmind.openJournal(new File(args[6])), args[6]);
+			} catch (IOException e) {
+				System.err.println("Error opening journal: " + e.getMessage());
+			}
+		}
+		
 		Random rng = new Random();
 		overmind.startSample();
 		
@@ -83,11 +92,16 @@ public class OvermindMain {
 		}
 		
 		overmind.stopLearning();
+		try {
+			overmind.closeJournal();
+		} catch (IOException e) {
+			System.err.println("Error closing journal: " + e.getMessage());
+		}
 		System.out.println("Finished");
 		System.exit(0);
 	}
 	
 	public static void printUsage() {
-		System.out.println("Usage: java OvermindMain prefs-file order chains multiplier seconds [iterations]");
+		System.out.println("Usage: java OvermindMain prefs-file order chains multiplier seconds [iterations [journal-dir]]");
 	}
 }
@@ -6,14 +6,22 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.InvalidPropertiesFormatException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
+import org.oep.markov.ChainFile;
 import org.oep.markov.MarkovSentence;
+import org.oep.markov.MarkovSnapshot;
+import org.oep.markov.PhraseJournal;
+import org.oep.markov.TokenCodec;
 import org.oep.markov.test.TwitterTest;
 
 import twitter4j.Twitter;
@@ -31,7 +39,8 @@ public class TweetOvermind implements TwitterStreamHandler {
 	
 	public static final boolean DEBUG = true;
 	
-	private ArrayList<MarkovSentence> mChains = new ArrayList<MarkovSentence>();
+	/** Remembers the last mCount cycles' worth of tweets. See cycleChains(). */
+	private MarkovSentence mChain;
 	
 	private String mUsername;
 	private String mPassword;
@@ -43,8 +52,46 @@ public class TweetOvermind implements TwitterStreamHandler {
 	
 	private Semaphore mLock = new Semaphore(1, true);
 	
+	/** What makeTweet() generates from. Swapped in whole, so reading it never takes mLock. */
+	private final AtomicReference<MarkovSnapshot<String>> mSnapshot =
+		new AtomicReference<MarkovSnapshot<String>>();
+	
+	/** How long to learn between snapshots, in milliseconds */
+	private long mSnapshotInterval = 1000;
+	private long mSnapshotTaken = 0;
+	
+	/** Counts snapshot copies, so an older one built slowly never replaces a newer one. Guarded by mSnapshot. */
+	private long mSnapshotCopies = 0;
+	private long mSnapshotPublished = 0;
+	
 	private Thread mLearnThread = null;
 	
+	/** Where we log what we learn so a restart can pick it back up, if anywhere */
+	private PhraseJournal<String> mJournal = null;
+	
+	/** How many recent tweets we keep the text of, so that deleting one can unlearn it */
+	public static final int RECENT_TWEETS = 100000;
+	
+	/** Text we learned for each recent status ID, and when, oldest first */
+	private final Map<Long, Learned> mRecent = new LinkedHashMap<Long, Learned>() {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<Long, Learned> eldest) {
+			return size() > RECENT_TWEETS;
+		}
+	};
+	
+	/** A tweet we learned and the cycle we learned it in */
+	private static class Learned {
+		final String text;
+		final int epoch;
+		
+		Learned(String text, int epoch) {
+			this.text = text;
+			this.epoch = epoch;
+		}
+	}
+	
 	String regex_url = "https?://([-\\w\\.]+)+(:\\d+)?(/([\\w/_\\.]*(\\?\\S+)?)?)?";
 	String regex_mentions = "[@][A-Za-z0-9]+";
 	
@@ -57,7 +104,8 @@ public class TweetOvermind implements TwitterStreamHandler {
 		mCount = Math.max(1, chains);
 		mTokenChars = tokenChars;
 		mTerminateChars = terminateChars;
-		cycleChains();
+		mChain = makeChain();
+		copySnapshot().publish();
 	}
 	
 	public static void main(String [] args) {
@@ -90,6 +138,7 @@ public class TweetOvermind implements TwitterStreamHandler {
 			}
 			else {
 				overmind.parseSentence(line);
+				overmind.publishSnapshot();
 				System.out.printf("%s says: ", overmind.toString());
 				System.out.println(overmind.makeTweet());
 			}
@@ -97,29 +146,170 @@ public class TweetOvermind implements TwitterStreamHandler {
 	}
 	
 	public void parseSentence(String tweet) {
+		learnLogged(tweet);
+	}
+	
+	/**
+	 * Journal and learn a tweet.
+	 * @return the cycle it was learned in, or -1 if we were interrupted
+	 */
+	private int learnLogged(String tweet) {
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return -1; }
+		
+		int epoch;
+		PendingSnapshot pending = null;
+		try {
+			if(mJournal != null) mJournal.append(Collections.singletonList(tweet));
+			mChain.parseSentence(tweet);
+			epoch = mChain.getEpoch();
+			
+			// On a clock rather than a tweet count, so a bigger chain doesn't mean more time copying.
+			if(System.currentTimeMillis() - mSnapshotTaken >= mSnapshotInterval) pending = copySnapshot();
+		}
+		finally {
+			mLock.release();
+		}
+		
+		if(pending != null) pending.publish();
+		return epoch;
+	}
+	
+	/**
+	 * Unlearn a tweet learned through parseSentence(). The next snapshot
+	 * stops generating it.
+	 * @param tweet the same text that was learned
+	 */
+	public void forgetSentence(String tweet) {
+		forgetSentence(tweet, -1);
+	}
+	
+	/**
+	 * Unlearn a tweet from the cycle it was learned in, so tweets learned
+	 * since keep their weight.
+	 * @param tweet the same text that was learned
+	 * @param epoch the chain's epoch when it was learned, or -1 for the newest cycles first
+	 */
+	private void forgetSentence(String tweet, int epoch) {
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return; }
+		
+		try {
+			// An expired cycle, or one of a chain load() has since replaced, has nothing to take back.
+			int current = mChain.getEpoch();
+			if(epoch >= 0 && (epoch > current || epoch <= current - mChain.getWindow())) return;
+			
+			// Recovery has to take it back out too.
+			if(mJournal != null) mJournal.appendRemoval(Collections.singletonList(tweet));
+			mChain.forgetSentence(tweet, epoch);
+		}
+		finally {
+			mLock.release();
+		}
+	}
+	
+	/**
+	 * Publish a fresh snapshot for makeTweet() right away instead of
+	 * waiting for the next interval.
+	 */
+	public void publishSnapshot() {
 		try { mLock.acquire(); } 
 		catch (InterruptedException e) { return; }
 		
-		for(MarkovSentence chain : mChains) {
-			chain.parseSentence(tweet);
+		PendingSnapshot pending;
+		try {
+			pending = copySnapshot();
+		}
+		finally {
+			mLock.release();
+		}
+		pending.publish();
+	}
+	
+	/**
+	 * Set how long to learn between snapshots. Smaller is fresher; larger
+	 * spends less of the learning thread on copying.
+	 * @param millis milliseconds between snapshots, or 0 for after every tweet
+	 */
+	public void setSnapshotInterval(long millis) {
+		mSnapshotInterval = Math.max(0, millis);
+	}
+	
+	/**
+	 * Only called while holding mLock. Copies the chain; building the
+	 * snapshot from the copy is left for after mLock is released.
+	 */
+	private PendingSnapshot copySnapshot() {
+		mSnapshotTaken = System.currentTimeMillis();
+		synchronized(mSnapshot) {
+			return new PendingSnapshot(++mSnapshotCopies, mChain.snapshotLater());
+		}
+	}
+	
+	/** A copy of the chain whose snapshot is yet to be built and published */
+	private class PendingSnapshot {
+		private final long mCopy;
+		private final Supplier<MarkovSnapshot<String>> mBuild;
+		
+		PendingSnapshot(long copy, Supplier<MarkovSnapshot<String>> build) {
+			mCopy = copy;
+			mBuild = build;
 		}
 		
-		mLock.release();
+		/**
+		 * Build the snapshot and publish it for makeTweet(), unless a newer
+		 * one was published while we were building. Call without mLock.
+		 */
+		void publish() {
+			MarkovSnapshot<String> snapshot = mBuild.get();
+			synchronized(mSnapshot) {
+				if(mCopy < mSnapshotPublished) return;
+				mSnapshotPublished = mCopy;
+				mSnapshot.set(snapshot);
+			}
+		}
 	}
 	
+	/**
+	 * Forget the oldest of the last mCount cycles' tweets and start a new
+	 * cycle. The chain's edges expire lazily, so this costs no more than a
+	 * snapshot.
+	 */
 	public void cycleChains() {
 		try { mLock.acquire(); } 
 		catch (InterruptedException e) { return; }
 		
-		if(mChains.size() >= mCount) {
-			mChains.remove(0);
+		PendingSnapshot pending;
+		try {
+			mChain.advanceEpoch();
+			
+			// Drop the tokens only the expired cycle used, or the dictionary grows forever.
+			mChain.compactDictionary();
+			pending = copySnapshot();
+			
+			// The journal doesn't record cycles, so the checkpoint has to.
+			if(mJournal != null) {
+				try {
+					mJournal.checkpoint(base -> saveChain(base));
+				}
+				catch(IOException e) {
+					System.err.println("Error taking a checkpoint: " + e.getMessage());
+				}
+			}
 		}
+		finally {
+			mLock.release();
+		}
+		pending.publish();
+	}
+	
+	/** A chain that remembers mCount cycles */
+	private MarkovSentence makeChain() {
 		MarkovSentence chain = new MarkovSentence(mOrder);
 		chain.setTokenChars(mTokenChars);
 		chain.setTerminateChars(mTerminateChars);
-		mChains.add(chain);
-		
-		mLock.release();
+		chain.setWindow(mCount);
+		return chain;
 	}
 	
 	public String getUsername() {
@@ -127,36 +317,27 @@ public class TweetOvermind implements TwitterStreamHandler {
 	}
 	
 	public String makeTweet() {
-		try { mLock.acquire(); } 
-		catch (InterruptedException e) { return null; }
-		
-		MarkovSentence chain = mChains.get(0);
-		String sentence = chain.makeSentence();
+		// Generate from the latest snapshot so learning carries on meanwhile.
+		MarkovSnapshot<String> snapshot = mSnapshot.get();
+		String sentence = MarkovSentence.makeSentence(snapshot.makePhrase());
 		int i = 0;
 		
 		while(i != Integer.MAX_VALUE && sentence.length() > 140) {
-			sentence = chain.makeSentence();
+			sentence = MarkovSentence.makeSentence(snapshot.makePhrase());
 			i++;
 		}
 		
 		if(i > 0) System.out.println(i + " failures.");
 		
-		mLock.release();
-		
 		return sentence;
 	}
 	
 	public int getNodeCount() {
-		MarkovSentence chain = mChains.get(0);
-		
-		if(chain == null) return 0;
-		
-		return chain.getNodeCount();
+		return mChain.getNodeCount();
 	}
 	
 	public int getEdgeCount() {
-		MarkovSentence chain = mChains.get(0);
-		return chain.getEdgeCount();
+		return mChain.getEdgeCount();
 	}
 	
 	public void setTerminateChars(String chars) {
@@ -193,8 +374,126 @@ public class TweetOvermind implements TwitterStreamHandler {
 	}
 	
 	public void clear() {
-		mChains.clear();
-		cycleChains();
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return; }
+		
+		PendingSnapshot pending;
+		try {
+			mChain.clear();
+			pending = copySnapshot();
+			synchronized(mRecent) {
+				mRecent.clear();
+			}
+		}
+		finally {
+			mLock.release();
+		}
+		pending.publish();
+	}
+	
+	/**
+	 * Save the chain. Only what it still remembers is saved, and it all
+	 * comes back as the current cycle.
+	 * @param file file to save to
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return; }
+		
+		try {
+			saveChain(file);
+		}
+		finally {
+			mLock.release();
+		}
+	}
+	
+	/** Only called while holding mLock. */
+	private void saveChain(File file) throws IOException {
+		ChainFile.save(mChain, TokenCodec.STRING, file);
+	}
+	
+	/**
+	 * Restore a chain written by save(), replacing whatever we have learned.
+	 * @param file file to load from
+	 * @return false if there was no such file
+	 * @throws IOException
+	 */
+	public boolean load(File file) throws IOException {
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return false; }
+		
+		PendingSnapshot pending;
+		try {
+			if(!loadChain(file)) return false;
+			pending = copySnapshot();
+		}
+		finally {
+			mLock.release();
+		}
+		pending.publish();
+		return true;
+	}
+	
+	/** Only called while holding mLock. Doesn't publish a snapshot. */
+	private boolean loadChain(File file) throws IOException {
+		if(!file.exists()) return false;
+		
+		MarkovSentence chain = makeChain();
+		ChainFile.load(file, TokenCodec.STRING, chain);
+		mChain = chain;
+		return true;
+	}
+	
+	/**
+	 * Keep a journal of every tweet we learn in the given directory, with
+	 * a checkpoint of the chain every time it cycles. Whatever the
+	 * directory holds from an earlier run is recovered first.
+	 * @param directory where to keep the journal
+	 * @return how many tweets were replayed on top of the last checkpoint
+	 * @throws IOException
+	 */
+	public long openJournal(File directory) throws IOException {
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return 0; }
+		
+		long count;
+		PendingSnapshot pending;
+		try {
+			PhraseJournal<String> journal = new PhraseJournal<String>(directory, TokenCodec.STRING);
+			
+			// Straight into the chain: a snapshot per interval would make recovery quadratic.
+			// The checkpoint and every tweet since come back in the current epoch, so that's
+			// where a removal's weight is now, whichever cycle it was taken from live.
+			count = journal.recover(base -> loadChain(base),
+					phrase -> mChain.parseSentence(phrase.get(0)),
+					phrase -> mChain.forgetSentence(phrase.get(0), mChain.getEpoch()));
+			pending = copySnapshot();
+			mJournal = journal;
+		}
+		finally {
+			mLock.release();
+		}
+		pending.publish();
+		return count;
+	}
+	
+	/**
+	 * Flush and close the journal, if we have one.
+	 * @throws IOException
+	 */
+	public void closeJournal() throws IOException {
+		try { mLock.acquire(); } 
+		catch (InterruptedException e) { return; }
+		
+		try {
+			if(mJournal != null) mJournal.close();
+			mJournal = null;
+		}
+		finally {
+			mLock.release();
+		}
 	}
 	
 	public void updateStatus(String tweet) throws TwitterException {
@@ -206,7 +505,12 @@ public class TweetOvermind implements TwitterStreamHandler {
 
 	@Override
 	public void addDeletion(SDeletion d) {
-		// Intentionally blank
+		// We can only unlearn tweets recent enough that we still have their text.
+		Learned tweet;
+		synchronized(mRecent) {
+			tweet = mRecent.remove(d.getStatusId());
+		}
+		if(tweet != null) forgetSentence(tweet.text, tweet.epoch);
 	}
 
 	@Override
@@ -219,7 +523,13 @@ public class TweetOvermind implements TwitterStreamHandler {
 		String tweet = t.getText();
 		tweet = tweet.replaceAll(regex_url, "");
 //		tweet = tweet.replaceAll(regex_mentions, "");
-		parseSentence(tweet);
+		int epoch = learnLogged(tweet);
+		
+		if(epoch >= 0 && t.getStatusId() != null) {
+			synchronized(mRecent) {
+				mRecent.put(t.getStatusId(), new Learned(tweet, epoch));
+			}
+		}
 	}
 	
 	public static TweetOvermind makeOvermind(File xml, int order, int chains, String tokenChars, String terminateChars)